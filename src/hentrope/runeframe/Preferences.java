@@ -73,9 +73,16 @@ public class Preferences extends CustomDictionary<Preferences.Key> {
 
 	public static enum Key implements CustomDictionary.Key {
 		HOME_WORLD("home-world", "0", null,
-				"Sets which world the client will attempt use on startup."),
+				"Sets which world the client will attempt use on startup. If set to \"auto\",",
+				"the client will use whichever world had the lowest latency on previous startups."),
 		CACHE_GAMEPACK("cache-gamepack", "true", null,
 				"If true, the client will store the gamepack locally for faster startup."),
+		DOWNLOAD_CONNECTIONS("download-connections", "1", null,
+				"The number of connections used to download the gamepack. If greater than 1,",
+				"the gamepack will be downloaded in that many pieces at the same time."),
+		STREAM_GAMEPACK("stream-gamepack", "false", null,
+				"If true, the game will be started while the gamepack is still downloading,",
+				"rather than after all of it has been downloaded and verified."),
 		PRESERVE_WINDOW_STATE("preserve-window-state", "true", null,
 				"If true, the client will save the window's size and position between sessions."),
 		GRAPHICS_ACCELERATION("graphics-acceleration", "Software", null,
@@ -6,18 +6,24 @@ import static hentrope.runeframe.Preferences.Key.*;
 import java.applet.Applet;
 import java.io.*;
 import java.security.GeneralSecurityException;
+import java.util.Collections;
 
 import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 
+import hentrope.runeframe.client.ClassLoadProfile;
 import hentrope.runeframe.client.Client;
+import hentrope.runeframe.client.ClientCache;
 import hentrope.runeframe.client.ClientConfig;
+import hentrope.runeframe.client.EncodingPolicy;
+import hentrope.runeframe.client.RevisionWatcher;
 import hentrope.runeframe.io.FileAtlas;
 import hentrope.runeframe.screen.Screenshot;
 import hentrope.runeframe.ui.GraphicsAcceleration;
 import hentrope.runeframe.ui.InputManager;
 import hentrope.runeframe.ui.ProgressBar;
 import hentrope.runeframe.ui.RuneFrame;
+import hentrope.runeframe.util.CertificateVerifier;
 import hentrope.runeframe.util.ProgressListener;
 
 /**
@@ -26,7 +32,7 @@ import hentrope.runeframe.util.ProgressListener;
  * @author hentrope
  */
 public class Runner {
-	public final static int TASK_DELAY = 1000;
+	public final static int TASK_DELAY = 1000, MONITOR_INTERVAL = 30000;
 
 	/**
 	 * Entry method for the RuneFrame client. See inline comments for details.
@@ -55,6 +61,12 @@ public class Runner {
 		atlas.dataDir.mkdirs();
 		atlas.certificateDir.mkdir();
 
+		/*
+		 * Start loading the trusted certificates in the background, so that
+		 * they are ready by the time a downloaded gamepack is verified.
+		 */
+		CertificateVerifier verifier = new CertificateVerifier(atlas.certificateDir, atlas.trustIndex, false).start();
+
 		/*
 		 * Set the user.home property so that the game places its files in a
 		 * a different directory.
@@ -106,7 +118,7 @@ public class Runner {
 		Client game = null;
 		while (game == null) {
 			try {
-				game = Client.loadAll(pref, atlas, progressBar);
+				game = Client.loadAll(pref, atlas, verifier, progressBar);
 			} catch (IOException e) {
 				retry(progressBar, "Connection error.", 15);
 			} catch (SecurityException | GeneralSecurityException e) {
@@ -126,6 +138,13 @@ public class Runner {
 			}
 		}
 
+		/*
+		 * If the DEBUG flag is set, periodically report how much of the
+		 * gamepack is still held in memory.
+		 */
+		if (args.getBool(DEBUG) && game.gamepack != null)
+			game.gamepack.startMonitor(MONITOR_INTERVAL);
+
 		/*
 		 * Add the applet to the frame on the AWT event dispatch thread.
 		 */
@@ -169,20 +188,69 @@ public class Runner {
 			} catch (IOException e) {}
 
 		/*
-		 * If the gamepack was downloaded remotely but the preference is set to
-		 * cache it, save the gamepack to disk using the intercept stream.
+		 * If the order in which the game requests its classes was being
+		 * recorded, stop recording and save the profile so that the next
+		 * startup can define those classes ahead of time.
+		 */
+		ClassLoadProfile profile = game.profile;
+		if (game.recorder != null) {
+			profile = game.recorder.stop();
+			try {
+				profile.write(atlas.cacheProfile);
+			} catch (IOException e) {
+				System.err.println("Unable to save class load profile to disk.");
+				e.printStackTrace();
+			}
+		}
+
+		/*
+		 * If the gamepack was parsed from a JAR rather than loaded from the
+		 * indexed cache, write its classes to the indexed cache so that the
+		 * next startup can map them directly. Classes are laid out in the
+		 * order that the game requests them. A streamed gamepack must finish
+		 * loading first.
 		 */
-		if (game.intercept != null) {
-			try (	OutputStream out = new FileOutputStream(atlas.cacheJar);
-					RandomAccessFile idFile = new RandomAccessFile(atlas.cacheID, "rwd") ) {
-				byte[] data = game.intercept.toByteArray();
-				out.write(data, 0, data.length);
-				idFile.writeInt(Integer.parseInt(game.config.get(ClientConfig.Key.DOWNLOAD)));
-			} catch (IOException | NumberFormatException e) {
-				System.err.println("Unable to save gamepack cache to disk.");
+		if (game.gamepack != null && pref.getBool(CACHE_GAMEPACK)) {
+			try {
+				game.awaitGamepack();
+				ClientCache.write(atlas.cacheStore,
+						Integer.parseInt(game.config.get(ClientConfig.Key.DOWNLOAD)), game.gamepack,
+						profile != null ? profile.getOrder() : Collections.<String>emptyList());
+			} catch (IOException | GeneralSecurityException | NumberFormatException e) {
+				System.err.println("Unable to save indexed gamepack cache to disk.");
 				e.printStackTrace();
 			}
 		}
+
+		/*
+		 * If the DEBUG flag is set and the gamepack was downloaded, print the
+		 * counters kept by each stage of the download once it has finished,
+		 * along with the encoding estimates that it was recorded into.
+		 */
+		if (args.getBool(DEBUG) && game.pipeline != null) {
+			try {
+				game.awaitGamepack();
+				game.pipeline.print();
+				EncodingPolicy.read(atlas.encodingHistory).print();
+			} catch (IOException | GeneralSecurityException e) {}
+		}
+
+		/*
+		 * The gamepack is kept by the ClassLoader for as long as the game
+		 * runs, but the game only needs the classes that have yet to be
+		 * defined. Drop everything else, so that each remaining class is
+		 * dropped as soon as it has been defined.
+		 */
+		if (game.gamepack != null)
+			game.gamepack.release();
+
+		/*
+		 * While the game is running, periodically check whether a new
+		 * gamepack has been released, and download it ahead of time so that
+		 * the next startup can load it from cache.
+		 */
+		if (pref.getBool(CACHE_GAMEPACK))
+			RevisionWatcher.start(atlas, pref, game.config, verifier);
 	}
 
 	/**
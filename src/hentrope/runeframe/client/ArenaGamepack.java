@@ -0,0 +1,539 @@
+package hentrope.runeframe.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A {@link ClientGamepack} that stores the data of every file in a single
+ * buffer, rather than in a separate array for each file.
+ * <p>
+ * A gamepack contains thousands of small files, each of which would
+ * otherwise need its own array, JarEntry and Entry. Instead, the name,
+ * offset and length of each file are kept in flat arrays, and each
+ * distinct set of certificates is stored once in a table. The buffer may
+ * be allocated outside of the heap, in which case classes are defined
+ * directly from it without being copied.
+ * <p>
+ * Entries returned by {@link #iterator()} and {@link #getClassEntry(String)}
+ * are created on demand, with a copy of the file's data.
+ *
+ * @author hentrope
+ * @see ClientGamepack#readFile(File, boolean)
+ * @see ClientGamepack#compact(boolean)
+ */
+class ArenaGamepack extends ClientGamepack {
+	private static final int END_SIGNATURE = 0x06054b50, CENTRAL_SIGNATURE = 0x02014b50, LOCAL_SIGNATURE = 0x04034b50;
+	private static final int END_LENGTH = 22, CENTRAL_LENGTH = 46, LOCAL_LENGTH = 30;
+
+	/**
+	 * Reads every file of the given JAR into a single buffer, inflating them
+	 * in parallel on a {@link ForkJoinPool}.
+	 * <p>
+	 * Rather than using a JarFile, which allocates a new stream and buffer
+	 * for every entry it reads, the whole JAR is read into memory, and its
+	 * central directory is parsed to find the size and location of each
+	 * file. Each file is then inflated straight into its slice of the buffer.
+	 *
+	 * @param file JAR file from which to load the gamepack
+	 * @param direct whether the buffer should be allocated outside of the heap
+	 * @return an instance of ArenaGamepack
+	 * @throws IOException if there is an IOException while reading the JAR, or the JAR is malformed
+	 */
+	static ArenaGamepack read(File file, boolean direct) throws IOException {
+		// Files.readAllBytes would leave behind a cached direct buffer as large as the JAR.
+		byte[] jar;
+		try ( RandomAccessFile in = new RandomAccessFile(file, "r") ) {
+			if (in.length() > Integer.MAX_VALUE)
+				throw new ZipException("Gamepack is too large to read into memory.");
+			jar = new byte[(int) in.length()];
+			in.readFully(jar);
+		}
+		ByteBuffer zip = ByteBuffer.wrap(jar).order(ByteOrder.LITTLE_ENDIAN);
+
+		int end = jar.length - END_LENGTH;
+		while (end >= 0 && zip.getInt(end) != END_SIGNATURE)
+			end--;
+		if (end < 0)
+			throw new ZipException("End of central directory not found.");
+
+		int count = zip.getShort(end + 10) & 0xFFFF;
+		long position = zip.getInt(end + 16) & 0xFFFFFFFFL;
+		if (count == 0xFFFF || position == 0xFFFFFFFFL)
+			throw new ZipException("ZIP64 archives are not supported.");
+
+		// Find the location of every file, skipping directories and signatures.
+		List<String> names = new ArrayList<String>(count);
+		int[] methods = new int[count], starts = new int[count], compressed = new int[count], lengths = new int[count];
+		long total = 0;
+		for (int i = 0; i < count; i++) {
+			int header = (int) position;
+			if (header < 0 || header > jar.length - CENTRAL_LENGTH || zip.getInt(header) != CENTRAL_SIGNATURE)
+				throw new ZipException("Malformed central directory.");
+
+			int nameLength = zip.getShort(header + 28) & 0xFFFF;
+			String name = new String(jar, header + CENTRAL_LENGTH, nameLength, StandardCharsets.UTF_8);
+			position = header + CENTRAL_LENGTH + nameLength + (zip.getShort(header + 30) & 0xFFFF) + (zip.getShort(header + 32) & 0xFFFF);
+			if (name.endsWith("/") || isUnverifiable(name))
+				continue;
+
+			if ((zip.getShort(header + 8) & 1) != 0)
+				throw new ZipException("Encrypted entry " + name);
+			int local = zip.getInt(header + 42);
+			if (local < 0 || local > jar.length - LOCAL_LENGTH || zip.getInt(local) != LOCAL_SIGNATURE)
+				throw new ZipException("Malformed local header for " + name);
+
+			int index = names.size();
+			names.add(name);
+			methods[index] = zip.getShort(header + 10) & 0xFFFF;
+			compressed[index] = zip.getInt(header + 20);
+			lengths[index] = zip.getInt(header + 24);
+			starts[index] = local + LOCAL_LENGTH + (zip.getShort(local + 26) & 0xFFFF) + (zip.getShort(local + 28) & 0xFFFF);
+			if (compressed[index] < 0 || lengths[index] < 0 || starts[index] > jar.length - compressed[index])
+				throw new ZipException("Malformed entry " + name);
+			if (methods[index] != ZipEntry.STORED && methods[index] != ZipEntry.DEFLATED)
+				throw new ZipException("Unsupported compression method for " + name);
+			total += lengths[index];
+		}
+
+		Builder builder = new Builder(null, names.size(), total, direct);
+		ByteBuffer[] slices = new ByteBuffer[names.size()];
+		int manifest = -1;
+		for (int i = 0; i < slices.length; i++) {
+			slices[i] = builder.slice(builder.add(names.get(i), lengths[i], null));
+			if (names.get(i).equalsIgnoreCase(JarFile.MANIFEST_NAME))
+				manifest = i;
+		}
+
+		try {
+			ForkJoinPool.commonPool().invoke(new Inflate(jar, methods, starts, compressed, slices, 0, slices.length));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		if (manifest >= 0) {
+			byte[] data = new byte[lengths[manifest]];
+			builder.slice(manifest).get(data);
+			builder.manifest = new Manifest(new ByteArrayInputStream(data));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Copies every file of the given gamepack into a single buffer.
+	 *
+	 * @param gamepack a gamepack that has finished loading
+	 * @param direct whether the buffer should be allocated outside of the heap
+	 * @return an instance of ArenaGamepack containing the same files
+	 */
+	static ArenaGamepack copyOf(ClientGamepack gamepack, boolean direct) {
+		int count = 0;
+		long total = 0;
+		for (ClientGamepack.Entry file: gamepack) {
+			count++;
+			total += file.data.length;
+		}
+
+		Builder builder = new Builder(gamepack.getManifest(), count, total, direct);
+		for (ClientGamepack.Entry file: gamepack) {
+			int index = builder.add(file.entry.getName(), file.data.length, file.certificates);
+			builder.slice(index).put(file.data);
+		}
+		return builder.build();
+	}
+
+	private static final int UNSIGNED = -1;
+
+	private ByteBuffer arena;
+	private final String[] names;
+	private final int[] offsets, lengths, signers;
+	private final Certificate[][] certificates;
+
+	/**
+	 * Indices of the class files, sorted by file name.
+	 */
+	private final int[] classes;
+	private final boolean[] removed;
+	private int remaining;
+	private boolean released = false;
+
+	private ArenaGamepack(Builder builder) {
+		super(builder.manifest);
+		this.arena = builder.arena;
+		this.names = builder.names;
+		this.offsets = builder.offsets;
+		this.lengths = builder.lengths;
+		this.signers = builder.signers;
+		this.certificates = builder.table.toArray(new Certificate[builder.table.size()][]);
+
+		List<Integer> classList = new ArrayList<Integer>();
+		for (int i = 0; i < names.length; i++)
+			if (names[i].endsWith(".class"))
+				classList.add(i);
+		classList.sort(new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return names[a].compareTo(names[b]);
+			}
+		});
+
+		this.classes = new int[classList.size()];
+		for (int i = 0; i < classes.length; i++)
+			classes[i] = classList.get(i);
+		this.removed = new boolean[names.length];
+		this.remaining = classes.length;
+	}
+
+	/**
+	 * Finds the index of the file containing the class with the given name.
+	 *
+	 * @return an index into the file arrays, or -1 if there is no such class
+	 */
+	private int find(String name) {
+		String filename = name.replace('.', '/') + ".class";
+		int low = 0, high = classes.length - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int comparison = names[classes[middle]].compareTo(filename);
+			if (comparison < 0)
+				low = middle + 1;
+			else if (comparison > 0)
+				high = middle - 1;
+			else
+				return classes[middle];
+		}
+		return -1;
+	}
+
+	private ByteBuffer slice(int index) {
+		ByteBuffer buffer = arena.duplicate();
+		buffer.position(offsets[index]);
+		buffer.limit(offsets[index] + lengths[index]);
+		return buffer.slice();
+	}
+
+	private Certificate[] getCertificates(int index) {
+		return signers[index] != UNSIGNED ? certificates[signers[index]] : null;
+	}
+
+	/**
+	 * @return a copy of the given file, or null if it was dropped when this gamepack was released
+	 */
+	private synchronized Entry getEntry(int index) {
+		if (released && removed[index])
+			return null;
+
+		byte[] data = new byte[lengths[index]];
+		slice(index).get(data);
+		return new Entry(new JarEntry(names[index]), data, getCertificates(index));
+	}
+
+	@Override
+	public synchronized Collection<String> getClassNames() {
+		List<String> classNames = new ArrayList<String>();
+		for (int index: classes)
+			if (!removed[index])
+				classNames.add(ClassSource.formatClassName(names[index]));
+		return classNames;
+	}
+
+	@Override
+	public boolean contains(String name) {
+		return find(name) >= 0;
+	}
+
+	@Override
+	Entry getClassEntry(String name) throws IOException {
+		int index = find(name);
+		return index >= 0 ? getEntry(index) : null;
+	}
+
+	@Override
+	public ClassSource.Data remove(String name) throws IOException {
+		int index = find(name);
+		if (index < 0)
+			return null;
+
+		synchronized (this) {
+			if (removed[index])
+				return null;
+			removed[index] = true;
+
+			// The slice keeps the buffer alive until the class has been defined.
+			ClassSource.Data data = new ClassSource.Data(slice(index), getCertificates(index));
+			if (--remaining == 0 && released)
+				arena = null;
+			return data;
+		}
+	}
+
+	/**
+	 * Since files cannot be dropped from the buffer individually, the classes
+	 * that have not yet been removed are instead copied into a new buffer of
+	 * the same kind, which is dropped once the last of them is removed.
+	 */
+	@Override
+	public synchronized void release() {
+		if (released)
+			return;
+		released = true;
+
+		int size = 0;
+		for (int index = 0; index < names.length; index++) {
+			if (!names[index].endsWith(".class"))
+				removed[index] = true;
+			else if (!removed[index])
+				size += lengths[index];
+		}
+
+		if (remaining == 0) {
+			arena = null;
+			return;
+		}
+
+		ByteBuffer kept = arena.isDirect() ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		for (int index: classes) {
+			if (!removed[index]) {
+				ByteBuffer data = slice(index);
+				offsets[index] = kept.position();
+				kept.put(data);
+			}
+		}
+		arena = kept;
+	}
+
+	@Override
+	public synchronized long getRetainedBytes() {
+		return arena != null ? arena.capacity() : 0;
+	}
+
+	@Override
+	public Iterator<Entry> iterator() {
+		return new Iterator<Entry>() {
+			private int next = 0;
+			private Entry entry = advance();
+
+			private Entry advance() {
+				Entry entry = null;
+				while (entry == null && next < names.length)
+					entry = getEntry(next++);
+				return entry;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return entry != null;
+			}
+
+			@Override
+			public Entry next() {
+				if (entry == null)
+					throw new NoSuchElementException();
+
+				Entry current = entry;
+				entry = advance();
+				return current;
+			}
+		};
+	}
+
+	/**
+	 * Prints the number of files in the gamepack, the size of its buffer, and
+	 * the number of distinct sets of certificates.
+	 *
+	 * Used to debug.
+	 */
+	@Override
+	public synchronized void print() {
+		System.out.println(String.format("%d files in %d bytes (%s), %d certificate sets",
+				names.length, getRetainedBytes(), arena != null && arena.isDirect() ? "direct" : "heap", certificates.length));
+	}
+
+	/**
+	 * A task that inflates a range of files from a JAR held in memory,
+	 * splitting the range in half until it is small enough to inflate on
+	 * one thread.
+	 */
+	private static class Inflate extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int BATCH_SIZE = 16;
+
+		private final byte[] jar;
+		private final int[] methods, starts, compressed;
+		private final ByteBuffer[] slices;
+		private final int start, end;
+
+		Inflate(byte[] jar, int[] methods, int[] starts, int[] compressed, ByteBuffer[] slices, int start, int end) {
+			this.jar = jar;
+			this.methods = methods;
+			this.starts = starts;
+			this.compressed = compressed;
+			this.slices = slices;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > BATCH_SIZE) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new Inflate(jar, methods, starts, compressed, slices, start, middle),
+						new Inflate(jar, methods, starts, compressed, slices, middle, end));
+				return;
+			}
+
+			Inflater inflater = new Inflater(true);
+			byte[] buff = new byte[BUFFER_SIZE];
+			try {
+				for (int i = start; i < end; i++) {
+					if (methods[i] == ZipEntry.STORED)
+						slices[i].put(jar, starts[i], Math.min(compressed[i], slices[i].remaining()));
+					else
+						inflate(inflater, i, buff);
+
+					if (slices[i].hasRemaining())
+						throw new ZipException("Entry is shorter than its recorded size.");
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} catch (DataFormatException e) {
+				throw new UncheckedIOException(new ZipException(e.getMessage()));
+			} finally {
+				inflater.end();
+			}
+		}
+
+		private void inflate(Inflater inflater, int i, byte[] buff) throws DataFormatException {
+			ByteBuffer slice = slices[i];
+			inflater.reset();
+			inflater.setInput(jar, starts[i], compressed[i]);
+
+			while (slice.hasRemaining()) {
+				int inflated;
+				if (slice.hasArray()) {
+					inflated = inflater.inflate(slice.array(), slice.arrayOffset() + slice.position(), slice.remaining());
+					slice.position(slice.position() + inflated);
+				} else {
+					inflated = inflater.inflate(buff, 0, Math.min(buff.length, slice.remaining()));
+					slice.put(buff, 0, inflated);
+				}
+
+				if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Lays out the files of an ArenaGamepack whose sizes are known in advance.
+	 * Files are added from a single thread, but their data can be written
+	 * into their slices from any thread.
+	 */
+	static class Builder {
+		private Manifest manifest;
+		private final ByteBuffer arena;
+		private final String[] names;
+		private final int[] offsets, lengths, signers;
+		private final List<Certificate[]> table = new ArrayList<Certificate[]>();
+		private final Map<Certificate[], Integer> identities = new IdentityHashMap<Certificate[], Integer>();
+		private final Map<List<Certificate>, Integer> sets = new HashMap<List<Certificate>, Integer>();
+		private int count = 0, position = 0;
+
+		/**
+		 * @param manifest the manifest of the gamepack
+		 * @param count the number of files that will be added
+		 * @param total the combined size of all files that will be added
+		 * @param direct whether the buffer should be allocated outside of the heap
+		 */
+		Builder(Manifest manifest, int count, long total, boolean direct) {
+			if (total > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Gamepack is too large to store in a single buffer.");
+
+			this.manifest = manifest;
+			this.arena = direct ? ByteBuffer.allocateDirect((int) total) : ByteBuffer.allocate((int) total);
+			this.names = new String[count];
+			this.offsets = new int[count];
+			this.lengths = new int[count];
+			this.signers = new int[count];
+		}
+
+		/**
+		 * Reserves space for a file.
+		 *
+		 * @return the index of the file, which can be passed to {@link #slice(int)}
+		 */
+		int add(String name, int length, Certificate[] certs) {
+			int index = count++;
+			names[index] = name;
+			offsets[index] = position;
+			lengths[index] = length;
+			signers[index] = intern(certs);
+			position += length;
+			return index;
+		}
+
+		/**
+		 * @return a buffer covering exactly the space reserved for the given file
+		 */
+		ByteBuffer slice(int index) {
+			ByteBuffer buffer = arena.duplicate();
+			buffer.position(offsets[index]);
+			buffer.limit(offsets[index] + lengths[index]);
+			return buffer.slice();
+		}
+
+		ArenaGamepack build() {
+			if (count != names.length || position != arena.capacity())
+				throw new IllegalStateException("Files do not fill the gamepack's buffer.");
+			return new ArenaGamepack(this);
+		}
+
+		/**
+		 * Returns the index of the given set of certificates in the table,
+		 * adding it if an equal set has not been seen before.
+		 */
+		private int intern(Certificate[] certs) {
+			if (certs == null)
+				return UNSIGNED;
+
+			// Entries signed by the same signers usually share a single array.
+			Integer index = identities.get(certs);
+			if (index == null) {
+				List<Certificate> key = Arrays.asList(certs);
+				index = sets.get(key);
+				if (index == null) {
+					index = table.size();
+					table.add(certs);
+					sets.put(key, index);
+				}
+				identities.put(certs, index);
+			}
+			return index;
+		}
+	}
+}
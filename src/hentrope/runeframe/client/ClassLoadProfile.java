@@ -0,0 +1,157 @@
+package hentrope.runeframe.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The order and timing in which the game first requested the classes of a
+ * particular gamepack revision.
+ * <p>
+ * A profile is recorded by a {@link ClassLoadProfile.Recorder} during the
+ * first launch of a revision. On later launches, the profile allows the
+ * {@link ClientClassLoader} to define classes ahead of the game's own
+ * requests, and allows the {@link ClientCache} to lay out classes in the
+ * order they will be read.
+ *
+ * @author hentrope
+ * @see ClassLoadProfile#read(File, int)
+ */
+public class ClassLoadProfile {
+	private static final int MAGIC = 0x52464350; // "RFCP"
+
+	/**
+	 * Reads the profile stored in the given file.
+	 *
+	 * @param file file containing the profile
+	 * @param id the ID of the gamepack that the profile is expected to describe
+	 * @return an instance of ClassLoadProfile, or null if the profile describes a different gamepack
+	 * @throws IOException if there is an IOException while reading the profile, or if the profile is malformed
+	 */
+	public static ClassLoadProfile read(File file, int id) throws IOException {
+		try ( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))) ) {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Class load profile has an invalid header.");
+			if (in.readInt() != id)
+				return null;
+
+			int count = in.readInt();
+			List<String> names = new ArrayList<String>(count);
+			List<Integer> times = new ArrayList<Integer>(count);
+			for (int i = 0; i < count; i++) {
+				names.add(in.readUTF());
+				times.add(in.readInt());
+			}
+
+			return new ClassLoadProfile(id, names, times);
+		}
+	}
+
+
+
+	private final int id;
+	private final List<String> names;
+	private final List<Integer> times;
+
+	private ClassLoadProfile(int id, List<String> names, List<Integer> times) {
+		this.id = id;
+		this.names = names;
+		this.times = times;
+	}
+
+	/**
+	 * Returns the names of the recorded classes, in the order in which they
+	 * were first requested.
+	 *
+	 * @return an unmodifiable list of binary class names
+	 */
+	public List<String> getOrder() {
+		return Collections.unmodifiableList(names);
+	}
+
+	/**
+	 * Writes this profile to the given file.
+	 *
+	 * @param file file in which the profile will be stored
+	 * @throws IOException if there is an IOException while writing the profile
+	 */
+	public void write(File file) throws IOException {
+		try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))) ) {
+			out.writeInt(MAGIC);
+			out.writeInt(id);
+			out.writeInt(names.size());
+			for (int i = 0; i < names.size(); i++) {
+				out.writeUTF(names.get(i));
+				out.writeInt(times.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Prints each recorded class alongside the number of milliseconds after
+	 * recording began that it was first requested.
+	 *
+	 * Used to debug.
+	 */
+	public void print() {
+		for (int i = 0; i < names.size(); i++)
+			System.out.println(times.get(i) + "ms " + names.get(i));
+	}
+
+	/**
+	 * Records the first request for each class made to a ClientClassLoader.
+	 * This class is thread-safe.
+	 */
+	public static class Recorder {
+		private final int id;
+		private final long start = System.nanoTime();
+		private final Set<String> recorded = ConcurrentHashMap.newKeySet();
+		private final List<String> names = new ArrayList<String>();
+		private final List<Integer> times = new ArrayList<Integer>();
+		private volatile boolean stopped = false;
+
+		/**
+		 * @param id the ID of the gamepack whose classes will be recorded
+		 */
+		public Recorder(int id) {
+			this.id = id;
+		}
+
+		/**
+		 * Records a request for the class with the given name, unless it has
+		 * already been recorded or the recorder has been stopped.
+		 *
+		 * @param name the binary name of the class
+		 */
+		public void record(String name) {
+			if (stopped || !recorded.add(name))
+				return;
+
+			int time = (int) ((System.nanoTime() - start) / 1000000);
+			synchronized (this) {
+				names.add(name);
+				times.add(time);
+			}
+		}
+
+		/**
+		 * Stops recording, and returns a profile of all classes recorded.
+		 *
+		 * @return an instance of ClassLoadProfile
+		 */
+		public synchronized ClassLoadProfile stop() {
+			stopped = true;
+			return new ClassLoadProfile(id, new ArrayList<String>(names), new ArrayList<Integer>(times));
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package hentrope.runeframe.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.cert.Certificate;
+import java.util.Collection;
+
+/**
+ * A source from which a {@link ClientClassLoader} obtains the data of the
+ * classes that it defines.
+ * <p>
+ * Since classes may be defined by several threads at once, implementations
+ * must be thread-safe.
+ *
+ * @author hentrope
+ * @see ClientGamepack
+ * @see ClientCache
+ */
+public interface ClassSource {
+	/**
+	 * Converts the name of a file within the gamepack to the binary name of
+	 * the class that it contains.
+	 *
+	 * @param filename name of a file ending in ".class"
+	 * @return the binary name of the class
+	 */
+	public static String formatClassName(String filename) {
+		return filename.substring(0, filename.length()-6).replace('/', '.');
+	}
+
+	/**
+	 * Returns the names of all classes that have not yet been removed from
+	 * this source. The returned collection is a snapshot, and will not
+	 * reflect classes removed afterwards. Sources that cannot track removal
+	 * may also include classes that have already been removed.
+	 *
+	 * @return the binary names of the remaining classes
+	 */
+	Collection<String> getClassNames();
+
+	/**
+	 * Determines whether the class with the given name belongs to this
+	 * source, including classes that have already been removed. While the
+	 * source is still loading, this also includes classes that are known to
+	 * be on their way, but have not arrived yet.
+	 *
+	 * @param name the binary name of the class
+	 * @return true if the class belongs to this source
+	 */
+	boolean contains(String name);
+
+	/**
+	 * Retrieves the data of the class with the given name, and removes it
+	 * from the source. Since a class can only be defined once, each class
+	 * will only ever be requested once.
+	 * <p>
+	 * If the source is still loading, and does not yet contain the class,
+	 * this blocks until the class arrives or the source finishes loading.
+	 *
+	 * @param name the binary name of the class
+	 * @return the data of the class, or null if this source does not contain it
+	 * @throws IOException if there is an IOException while reading the class, or the source failed to load
+	 */
+	Data remove(String name) throws IOException;
+
+	/**
+	 * Determines whether classes may still be added to this source. Until
+	 * it has finished loading, a class missing from the source may arrive
+	 * later.
+	 *
+	 * @return true if the source is still loading
+	 */
+	default boolean isLoading() {
+		return false;
+	}
+
+	/**
+	 * The data of a single class, along with the certificates it was signed with.
+	 */
+	public static class Data {
+		public final ByteBuffer buffer;
+		public final Certificate[] certificates;
+
+		public Data(ByteBuffer buffer, Certificate[] certificates) {
+			this.buffer = buffer;
+			this.certificates = certificates;
+		}
+	}
+}
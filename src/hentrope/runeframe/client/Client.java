@@ -6,13 +6,17 @@ import java.applet.Applet;
 import java.io.*;
 import java.net.*;
 import java.security.GeneralSecurityException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import hentrope.runeframe.Preferences;
 import hentrope.runeframe.Runner;
-import hentrope.runeframe.io.DecompressStream;
+import hentrope.runeframe.io.ContentDigest;
 import hentrope.runeframe.io.FileAtlas;
-import hentrope.runeframe.io.InterceptInputStream;
+import hentrope.runeframe.io.HttpValidator;
 import hentrope.runeframe.io.ProgressInputStream;
+import hentrope.runeframe.io.ResumableDownload;
 import hentrope.runeframe.util.*;
 
 /**
@@ -20,9 +24,12 @@ import hentrope.runeframe.util.*;
  * configuration and gamepack, and creating the ClassLoader.
  * 
  * @author hentrope
- * @see Client#loadAll(Preferences, FileAtlas, ProgressListener)
+ * @see Client#loadAll(Preferences, FileAtlas, CertificateVerifier, ProgressListener)
  */
 public class Client {
+	public static final int CONFIG_TIMEOUT = 10000, AUTO_WORLD_COUNT = 3;
+	public static final String AUTO_WORLD = "auto";
+
 	/**
 	 * A series of operations that loads a game client's configuration and gamepack
 	 * into memory, and creates a ClassLoader that allows the game code to be run.
@@ -35,21 +42,27 @@ public class Client {
 	 *     is later used as an AppletStub for the Applet.
 	 * <li>Using values obtained from the client configuration, a gamepack will
 	 *     either be downloaded from Jagex's servers, or loaded in from local
-	 *     cache. The end result will be an instance of {@link ClientGamepack},
-	 *     which will store both the metadata of the files in the gamepack, as
-	 *     well as the data of the files themselves.
-	 * <li>A {@link ClientClassLoader} will be created from the gamepack
-	 *     data, which will function as the ClassLoader which will load all of
+	 *     cache. The end result will be a {@link ClassSource}: either a
+	 *     {@link ClientCache} mapping the indexed cache, or an instance of
+	 *     {@link ClientGamepack}, which will store both the metadata of the
+	 *     files in the gamepack, as well as the data of the files themselves.
+	 * <li>A {@link ClientClassLoader} will be created from the class
+	 *     source, which will function as the ClassLoader which will load all of
 	 *     the classes needed by the game.
 	 * </ol>
 	 * In addition, a {@link JSObjectClassLoader} will be created in order
 	 * to hook JavaScript calls from the game.
 	 * <p>
+	 * If a snapshot of the previous client configuration is cached, the
+	 * second and third steps are started using the snapshot while the first
+	 * step is still in progress.
+	 * <p>
 	 * If any of these steps fail, an exception will be thrown so that the process
 	 * can be restarted.
 	 * 
 	 * @param pref An instance which contains all of the user's preferences
 	 * @param atlas An instance defining the location of all relevant files and directories
+	 * @param verifier An instance used to verify the gamepack if it has to be downloaded
 	 * @param listener The listener which will receive progress updates as the client loads
 	 * @return a Client instance that contains public references to the loaded data
 	 * @throws IOException if there is an IOException while attempting to load the gamepack
@@ -61,47 +74,80 @@ public class Client {
 	 * @see ClientClassLoader
 	 * @see JSObjectClassLoader
 	 */
-	public static Client loadAll(Preferences pref, FileAtlas atlas, ProgressListener listener)
+	public static Client loadAll(Preferences pref, FileAtlas atlas, CertificateVerifier verifier, ProgressListener listener)
 			throws IOException, GeneralSecurityException, ReflectiveOperationException, SecurityException {
 		
 		listener.setProgress(0, "Loading config");
 
 		/*
-		 * Load the client config from either the preferred world if available,
-		 * or the default world if that world is invalid/fails.
+		 * Request the client config from the preferred world, the default
+		 * world and a few fallback worlds at the same time. The preferred
+		 * world's config is used if it arrives shortly, and otherwise
+		 * whichever valid config arrives first. This way, a slow or
+		 * unavailable world does not hold up the rest of the startup.
+		 * 
+		 * The config is requested on a separate thread, so that the cached
+		 * gamepack can be loaded in the meantime.
+		 */
+		boolean cache = pref.getBool(CACHE_GAMEPACK);
+		FutureTask<ClientConfig> fetch = fetchConfig(getHomeWorlds(pref, atlas, true), cache ? atlas.configCache : null);
+
+		/*
+		 * While the config is being requested, use the snapshot of the last
+		 * config received to start loading the gamepack it refers to from
+		 * cache, and to start defining its classes. The config rarely
+		 * changes, so this work will usually be kept. It is only discarded
+		 * if the new config refers to a different gamepack.
 		 */
+		ClientConfig snapshot = cache ? ClientConfig.fromSnapshot(atlas.configCache) : null;
+		String snapshotID = snapshot != null ? snapshot.get(ClientConfig.Key.DOWNLOAD) : null;
+		ClassSource source = null;
+		ClientClassLoader loader = null;
+		if (snapshotID != null) {
+			source = loadCached(atlas, snapshotID);
+			if (source != null)
+				loader = createLoader(source, pref, atlas, snapshotID);
+		}
+
 		ClientConfig config;
 		try {
-			config = ClientConfig.fromWorld(pref.getInt(HOME_WORLD));
-		} catch (IOException | NumberFormatException e) {
-			config = ClientConfig.fromDefaultWorld();
+			config = awaitConfig(fetch);
+		} catch (IOException e) {
+			discard(loader, source);
+			throw e;
+		}
+
+		if (source != null && !snapshotID.equals(config.get(ClientConfig.Key.DOWNLOAD))) {
+			discard(loader, source);
+			source = null;
+			loader = null;
 		}
 
 		listener.setProgress(0, "Loading application");
 
 		/*
 		 * If the preferences state that the gamepack should be loaded from
-		 * cache, first attempt to load it locally. This process will also
-		 * compare the gamepack's ID to make sure that it is not out of date.
-		 * 
-		 * Since this code will have already been verified when it was
-		 * downloaded, there's no need to verify it again.
+		 * cache, and it was not already loaded using the snapshot, attempt to
+		 * load it locally. This process will also compare the gamepack's ID
+		 * to make sure that it is not out of date.
 		 */
-		ClientGamepack gamepack = null;
-		InterceptInputStream intercept = null;
-		if (pref.getBool(CACHE_GAMEPACK)) {
-			try (	InputStream fileInput = new FileInputStream(atlas.cacheJar);
-					RandomAccessFile idFile = new RandomAccessFile(atlas.cacheID, "rwd") ) {
-
-				if (Integer.parseInt(config.get(ClientConfig.Key.DOWNLOAD)) == idFile.readInt()) {
-					InputStream stream = wrapStream(
-							fileInput,
-							(int)atlas.cacheJar.length(),
-							null,
-							listener);
-					gamepack = ClientGamepack.fromStream(stream, null);
-				}
-			} catch (GeneralSecurityException | IOException | SecurityException e) {}
+		if (source == null && cache)
+			source = loadCached(atlas, config.get(ClientConfig.Key.DOWNLOAD));
+
+		/*
+		 * The indexed cache checks its classes against their digests in the
+		 * background while the config is requested. It is only used once
+		 * every class has passed, so that a corrupt cache falls back on
+		 * downloading the gamepack, rather than failing once the game runs.
+		 */
+		if (source instanceof ClientCache) {
+			try {
+				((ClientCache) source).verify();
+			} catch (IOException e) {
+				discard(loader, source);
+				source = null;
+				loader = null;
+			}
 		}
 
 		/*
@@ -111,30 +157,301 @@ public class Client {
 		 * 
 		 * Since this loads code from over the internet, the JAR will be
 		 * verified to ensure that all code is signed by Jagex.
+		 * 
+		 * The download is handled by a {@link GamepackPipeline}, which runs
+		 * the network read, decompression, JAR parsing and verification on
+		 * separate threads so that they overlap.
+		 * 
+		 * The raw download is kept on disk as it arrives, so that if the
+		 * connection fails partway, the next attempt can resume from where
+		 * it left off using a {@link ResumableDownload}.
+		 * 
+		 * If the preferences allow more than one connection, the download
+		 * will be split into byte ranges that are fetched at the same time.
+		 * 
+		 * If the cached JAR belongs to a different ID, the download is made
+		 * conditional on its HTTP validator. If the server responds that the
+		 * gamepack has not been modified since the cached JAR was downloaded,
+		 * the cached JAR is used instead, and its ID is updated to match the
+		 * client configuration.
+		 * 
+		 * If the gamepack is to be cached, the decompressed JAR is written to
+		 * a temporary file as it arrives, and committed to the cache as soon
+		 * as the gamepack has been loaded and verified.
+		 * 
+		 * The encoding requested is chosen by an {@link EncodingPolicy}, based
+		 * on how long previous downloads spent on the network and decoding,
+		 * unless a partial download has to be resumed in its own encoding.
+		 * 
+		 * Once downloaded, the gamepack's files are copied into a single
+		 * buffer outside of the heap, so that the game does not carry
+		 * thousands of small arrays for as long as it runs.
+		 * 
+		 * If the preferences allow the gamepack to be streamed, the applet is
+		 * created as soon as the pipeline has started, and each class is
+		 * defined once it has been downloaded and verified. The rest of the
+		 * download is finished in the background.
 		 */
-		if (gamepack == null) {
-			CertificateVerifier verifier = new CertificateVerifier(atlas.certificateDir);
-			
+		GamepackPipeline pipeline = null;
+		FutureTask<Void> completion = null;
+		if (source == null) {
+			byte[] cachedDigest = null;
+			HttpValidator cachedValidator = null;
+			if (cache) {
+				try ( RandomAccessFile idFile = new RandomAccessFile(atlas.cacheID, "r") ) {
+					idFile.readInt();
+					cachedDigest = new byte[ContentDigest.LENGTH];
+					idFile.readFully(cachedDigest);
+					cachedValidator = HttpValidator.read(atlas.cacheValidator);
+				} catch (IOException e) {}
+			}
+
 			URL url = new URL(config.get("codebase") + config.get("initial_jar"));
-			URLConnection connection = url.openConnection();
-			connection.addRequestProperty("accept-encoding", "pack200-gzip");
 
-			try ( InputStream urlStream = connection.getInputStream() ) {
-				InputStream stream = wrapStream(
-						urlStream,
-						connection.getContentLength(),
-						connection.getContentEncoding(),
-						listener);
+			EncodingPolicy policy = EncodingPolicy.read(atlas.encodingHistory);
+			String encoding = ResumableDownload.getPendingEncoding(url, atlas.downloadPartial);
+			if (encoding == null)
+				encoding = policy.choose();
+
+			ResumableDownload download = ResumableDownload.open(url, encoding,
+					atlas.downloadPartial, pref.getInt(DOWNLOAD_CONNECTIONS), cachedValidator);
+			File copy = null;
+			boolean streaming = false;
+			try {
+				if (download.isNotModified()) {
+					source = openCachedJar(atlas.cacheJar, cachedDigest);
+					if (source == null) {
+						atlas.cacheValidator.delete();
+						throw new IOException("Cached gamepack does not match its digest.");
+					}
 
-				if (pref.getBool(CACHE_GAMEPACK))
-					stream = intercept = new InterceptInputStream(stream);
+					try {
+						writeCacheID(atlas, config, cachedDigest);
+					} catch (IOException | NumberFormatException e) {
+						System.err.println("Unable to save gamepack cache ID to disk.");
+						e.printStackTrace();
+					}
+				} else {
+					// Only created once connected, so that a failed attempt leaves nothing behind.
+					if (cache)
+						copy = File.createTempFile("gamepack", ".tmp", atlas.dataDir);
 
-				gamepack = ClientGamepack.fromStream(stream, verifier);
+					InputStream stream = trackProgress(
+							download.getInputStream(),
+							(int) download.getContentLength(),
+							listener);
+
+					pipeline = new GamepackPipeline(verifier, copy);
+					if (pref.getBool(STREAM_GAMEPACK)) {
+						source = pipeline.start(stream, download.getContentEncoding());
+						loader = createLoader(source, pref, atlas, config.get(ClientConfig.Key.DOWNLOAD));
+						completion = finishInBackground(pipeline, download, copy, policy, atlas, config, loader);
+						streaming = true;
+					} else {
+						source = pipeline.load(stream, download.getContentEncoding()).compact(true);
+						finishDownload(pipeline, download, copy, policy, atlas, config);
+					}
+				}
+			} finally {
+				// A streamed download is closed once the gamepack has finished loading.
+				if (!streaming) {
+					download.close();
+					if (copy != null)
+						copy.delete();
+				}
 			}
 		}
 
 		listener.setProgress(100, "Launching application");
 
+		if (loader == null)
+			loader = createLoader(source, pref, atlas, config.get(ClientConfig.Key.DOWNLOAD));
+
+		Applet applet = loader.createApplet(config);
+
+		/*
+		 * Now that the applet has been created, define the rest of the
+		 * gamepack's classes on idle cores before the game needs them. If
+		 * the gamepack is still streaming, this is done once it has loaded.
+		 */
+		if (completion == null)
+			loader.predefineClasses();
+
+		/*
+		 * Return a new instance of Client that contains references to all of
+		 * the resources loaded during this process.
+		 */
+		return new Client(config, source instanceof ClientGamepack ? (ClientGamepack) source : null,
+				pipeline, completion, loader.getProfile(), loader.getRecorder(), applet);
+	}
+
+	/**
+	 * Returns the worlds from which the client config should be requested.
+	 * <p>
+	 * If the home world is set to "auto", the worlds with the lowest latency
+	 * measured by previous startups are returned, and a {@link WorldProbe}
+	 * may be started in the background to measure them again for the next
+	 * startup. Otherwise, only the home world is returned.
+	 * 
+	 * @param pref An instance which contains all of the user's preferences
+	 * @param atlas An instance defining the location of all relevant files and directories
+	 * @param probe whether to measure the latency of each world again
+	 * @return an array of world numbers, which may be empty
+	 */
+	static int[] getHomeWorlds(Preferences pref, FileAtlas atlas, boolean probe) {
+		if (!AUTO_WORLD.equalsIgnoreCase(pref.get(HOME_WORLD).trim()))
+			return new int[] { pref.getInt(HOME_WORLD) };
+
+		WorldProbe history = WorldProbe.read(atlas.worldHistory);
+		if (probe)
+			history.start(WorldProbe.CANDIDATES, atlas.worldHistory);
+		return history.getFastestWorlds(AUTO_WORLD_COUNT);
+	}
+
+	/**
+	 * Starts requesting the client config on a separate thread.
+	 * 
+	 * @param worlds the preferred worlds from which to request the config
+	 * @param configCache file in which the last config received is stored, or null if it should not be cached
+	 * @return a FutureTask which will contain the config
+	 */
+	private static FutureTask<ClientConfig> fetchConfig(int[] worlds, File configCache) {
+		FutureTask<ClientConfig> fetch = new FutureTask<ClientConfig>(new Callable<ClientConfig>() {
+			@Override
+			public ClientConfig call() throws IOException {
+				return ClientConfig.fromWorlds(worlds, configCache, CONFIG_TIMEOUT);
+			}
+		});
+
+		Thread thread = new Thread(fetch, "Config Fetcher");
+		thread.setDaemon(true);
+		thread.start();
+		return fetch;
+	}
+
+	private static ClientConfig awaitConfig(FutureTask<ClientConfig> fetch) throws IOException {
+		try {
+			return fetch.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			else if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Commits a downloaded gamepack to the cache, and records how long it
+	 * took to download and decode.
+	 */
+	private static void finishDownload(GamepackPipeline pipeline, ResumableDownload download, File copy,
+			EncodingPolicy policy, FileAtlas atlas, ClientConfig config) {
+		if (copy != null)
+			commitCache(pipeline, download.getValidator(), atlas, config);
+
+		policy.record(download.getContentEncoding(), pipeline, download.getResumedLength() > 0);
+		try {
+			policy.write(atlas.encodingHistory);
+		} catch (IOException e) {
+			System.err.println("Unable to save encoding history to disk.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Starts a thread that waits for a streamed gamepack to finish loading,
+	 * then finishes the download and predefines the remaining classes.
+	 * 
+	 * @return a FutureTask which will fail if the gamepack fails to load
+	 */
+	private static FutureTask<Void> finishInBackground(GamepackPipeline pipeline, ResumableDownload download,
+			File copy, EncodingPolicy policy, FileAtlas atlas, ClientConfig config, ClientClassLoader loader) {
+		FutureTask<Void> completion = new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException, GeneralSecurityException {
+				try {
+					pipeline.finish();
+					finishDownload(pipeline, download, copy, policy, atlas, config);
+				} finally {
+					download.close();
+					if (copy != null)
+						copy.delete();
+				}
+
+				loader.predefineClasses();
+				return null;
+			}
+		});
+
+		Thread thread = new Thread(completion, "Gamepack Finisher");
+		thread.setDaemon(true);
+		thread.start();
+		return completion;
+	}
+
+	/**
+	 * Attempts to load the gamepack with the given ID from cache.
+	 * <p>
+	 * The indexed cache is preferred, since its classes can be defined
+	 * directly from a memory mapping. If it is unavailable, the cached JAR
+	 * will be opened instead.
+	 * <p>
+	 * Since this code will have already been verified when it was
+	 * downloaded, there's no need to verify its signatures again. Instead,
+	 * the SHA-256 digest recorded when the cache was saved is checked on a
+	 * separate thread while the cache is being parsed, so that a corrupt
+	 * cache falls back on downloading the gamepack.
+	 * <p>
+	 * If a {@link RevisionWatcher} staged the gamepack with this ID during
+	 * a previous session, it is moved into the cache before being loaded.
+	 * 
+	 * @param atlas An instance defining the location of all relevant files and directories
+	 * @param id the ID of the gamepack, as given by the client configuration
+	 * @return a ClientCache or ClientGamepack instance, or null if no valid gamepack with that ID is cached
+	 */
+	private static ClassSource loadCached(FileAtlas atlas, String id) {
+		try {
+			ClassSource source = ClientCache.open(atlas.cacheStore, Integer.parseInt(id));
+			if (source != null)
+				return source;
+		} catch (IOException | NumberFormatException e) {}
+
+		try {
+			RevisionWatcher.promote(atlas, Integer.parseInt(id));
+		} catch (NumberFormatException e) {}
+
+		try ( RandomAccessFile idFile = new RandomAccessFile(atlas.cacheID, "r") ) {
+			if (Integer.parseInt(id) == idFile.readInt()) {
+				byte[] expected = new byte[ContentDigest.LENGTH];
+				idFile.readFully(expected);
+				return openCachedJar(atlas.cacheJar, expected);
+			}
+		} catch (IOException | NumberFormatException | SecurityException e) {}
+
+		return null;
+	}
+
+	/**
+	 * Creates the ClassLoader that will define the gamepack's classes.
+	 * <p>
+	 * If the order in which the game requests this gamepack's classes has
+	 * been recorded, the ClassLoader will begin defining them in that order
+	 * ahead of the game. Otherwise, it will record the order so that the
+	 * next startup can do so.
+	 * 
+	 * @param source source of the gamepack's classes
+	 * @param pref An instance which contains all of the user's preferences
+	 * @param atlas An instance defining the location of all relevant files and directories
+	 * @param id the ID of the gamepack, as given by the client configuration
+	 * @return a new ClientClassLoader instance
+	 * @throws IOException if there is an IOException while loading JSObject
+	 */
+	private static ClientClassLoader createLoader(ClassSource source, Preferences pref, FileAtlas atlas, String id)
+			throws IOException {
 		/*
 		 * Before creating a ClassLoader to handle the gamepack, a different
 		 * ClassLoader needs to be created in order to hook the client's
@@ -149,46 +466,128 @@ public class Client {
 		 * created that will enable the game to access all of the classes
 		 * defined in the gamepack.
 		 */
-		ClientClassLoader loader = ClientClassLoader.fromGamepack(gamepack, parent);
-		Applet applet = loader.createApplet(config);
+		ClientClassLoader loader = ClientClassLoader.fromSource(source, parent);
 
-		/*
-		 * Return a new instance of Client that contains references to all of
-		 * the resources loaded during this process.
-		 */
-		return new Client(config, gamepack, intercept, applet);
+		if (pref.getBool(CACHE_GAMEPACK)) {
+			try {
+				int gamepackID = Integer.parseInt(id);
+				ClassLoadProfile profile = null;
+				try {
+					profile = ClassLoadProfile.read(atlas.cacheProfile, gamepackID);
+				} catch (IOException e) {}
+
+				if (profile != null)
+					loader.prefetch(profile);
+				else
+					loader.record(new ClassLoadProfile.Recorder(gamepackID));
+			} catch (NumberFormatException e) {}
+		}
+
+		return loader;
+	}
+
+	/**
+	 * Discards the work started using an outdated config snapshot.
+	 */
+	private static void discard(ClientClassLoader loader, ClassSource source) {
+		if (loader != null)
+			loader.discard();
+		if (source instanceof Closeable) {
+			try {
+				((Closeable) source).close();
+			} catch (IOException e) {}
+		}
 	}
 
 	/**
-	 * Prepares a gamepack InputStream by wrapping it in any InputStreams
-	 * necessary to decompress the gamepack and track loading progress.
+	 * Opens the cached JAR, checking its digest on a separate thread while
+	 * its entries are being read.
 	 * <p>
-	 * The gamepack InputStream will be decompressed using a set of InputStreams
-	 * based on the encoding of the gamepack. These streams can be found in
-	 * {@link DecompressStream}'s <code>getInputStream</code> method.
+	 * Since every class in the JAR will eventually be defined and written
+	 * to the indexed cache, the whole JAR is inflated up front into a single
+	 * buffer outside of the heap if there are spare cores to do so in
+	 * parallel. On a single core, the JAR is opened
+	 * lazily so that the classes needed to start the game are read first.
+	 * 
+	 * @param file the cached JAR
+	 * @param expected the digest recorded when the JAR was cached
+	 * @return an instance of ClientGamepack, or null if the JAR does not match the digest
+	 * @throws IOException if there is an IOException while reading the JAR
+	 */
+	private static ClientGamepack openCachedJar(File file, byte[] expected) throws IOException {
+		ContentDigest digest = ContentDigest.start(file);
+		ClientGamepack jar = Runtime.getRuntime().availableProcessors() > 1 ?
+				ClientGamepack.readFile(file, true) : ClientGamepack.fromFile(file);
+
+		boolean valid = false;
+		try {
+			valid = digest.matches(expected);
+		} finally {
+			if (!valid)
+				jar.close();
+		}
+
+		return valid ? jar : null;
+	}
+
+	/**
+	 * Moves a downloaded gamepack into the cache, and records its ID, digest
+	 * and HTTP validator so that it can be loaded and checked on the next
+	 * startup.
+	 * <p>
+	 * The old validator is removed before the JAR is moved into place, and
+	 * the JAR is moved before its ID is updated, so that an interrupted
+	 * commit will be caught by the digest check.
+	 * 
+	 * @param pipeline the pipeline that downloaded the gamepack, which kept a copy of it
+	 * @param validator the validator returned by the server for the gamepack, or null if there was none
+	 * @param atlas An instance defining the location of all relevant files and directories
+	 * @param config the client configuration used to download the gamepack
+	 */
+	private static void commitCache(GamepackPipeline pipeline, HttpValidator validator,
+			FileAtlas atlas, ClientConfig config) {
+		try {
+			atlas.cacheValidator.delete();
+			writeCacheID(atlas, config, pipeline.commit(atlas.cacheJar));
+			if (validator != null)
+				validator.write(atlas.cacheValidator);
+		} catch (IOException | NumberFormatException e) {
+			System.err.println("Unable to save gamepack cache to disk.");
+			e.printStackTrace();
+		}
+	}
+
+	private static void writeCacheID(FileAtlas atlas, ClientConfig config, byte[] digest) throws IOException {
+		int id = Integer.parseInt(config.get(ClientConfig.Key.DOWNLOAD));
+		try ( RandomAccessFile idFile = new RandomAccessFile(atlas.cacheID, "rwd") ) {
+			idFile.writeInt(id);
+			idFile.write(digest);
+		}
+	}
+
+	/**
+	 * Prepares a gamepack InputStream by wrapping it in an InputStream that
+	 * tracks loading progress.
 	 * <p>
-	 * Additionally, the provided {@link ProgressListener} will be updated
-	 * based on the progress tracked by a <code>ProgressInputStream</code>.
-	 * The progress will reflect how much of the gamepack has been downloaded,
-	 * as opposed to how much has been decompressed or verified.
+	 * The provided {@link ProgressListener} will be updated based on the
+	 * progress tracked by a <code>ProgressInputStream</code>. The progress
+	 * will reflect how much of the gamepack has been downloaded, as opposed
+	 * to how much has been decompressed or verified.
 	 * 
 	 * @param stream InputStream to be wrapped
 	 * @param length Length of the given gamepack InputStream, in bytes
-	 * @param encoding Encoding of the given gamepack InputStream
 	 * @param listener ProgressListener to be updated about download progress
-	 * @return An InputStream that will output the decompressed gamepack
-	 * @throws IOException If an exception was thrown while creating a stream.
-	 * @see DecompressStream, ProgressListener
-	 */
-	private static InputStream wrapStream(InputStream stream, int length, String encoding, ProgressListener listener) throws IOException {
-		return DecompressStream.getInputStream(
-				new ProgressInputStream(stream) {
-					@Override
-					protected void update(int bytesRead) {
-						int percent = 100 * bytesRead / length;
-						listener.setProgress(percent, "Loading application - " + percent + "%");
-					}
-				}, encoding);
+	 * @return An InputStream that will output the raw gamepack
+	 * @see ProgressListener
+	 */
+	private static InputStream trackProgress(InputStream stream, int length, ProgressListener listener) {
+		return new ProgressInputStream(stream) {
+			@Override
+			protected void update(int bytesRead) {
+				int percent = 100 * bytesRead / length;
+				listener.setProgress(percent, "Loading application - " + percent + "%");
+			}
+		};
 	}
 
 
@@ -199,23 +598,74 @@ public class Client {
 	
 	/**
 	 * Metadata from the loaded gamepack, as well as the file data itself.
+	 * Null if the classes were loaded from the indexed cache. Since the
+	 * ClassLoader keeps the gamepack for as long as the game runs, it should
+	 * be released with {@link ClientGamepack#release()} once the indexed
+	 * cache has been written.
 	 */
 	public final ClientGamepack gamepack;
+
+	/**
+	 * The pipeline that downloaded the gamepack, including the encoding that
+	 * was used and the timings of each stage. Null if the gamepack was
+	 * loaded from cache. Its copy of the JAR is released once committed.
+	 */
+	public final GamepackPipeline pipeline;
 	
+	private final FutureTask<Void> completion;
+
+	/**
+	 * The recorded order in which the game requests its classes, or null if
+	 * no profile had been recorded for this gamepack.
+	 */
+	public final ClassLoadProfile profile;
+
 	/**
-	 * An InterceptInputStream containing the raw data unpacked from a downloaded JAR.
+	 * A recorder that is recording the order in which the game requests its
+	 * classes, or null if a profile had already been recorded.
 	 */
-	public final InterceptInputStream intercept;
+	public final ClassLoadProfile.Recorder recorder;
 	
 	/**
 	 * The Applet instance created by loading the client's main class.
 	 */
 	public final Applet applet;
 
-	private Client(ClientConfig config, ClientGamepack gamepack, InterceptInputStream intercept, Applet applet) {
+	private Client(ClientConfig config, ClientGamepack gamepack, GamepackPipeline pipeline, FutureTask<Void> completion,
+			ClassLoadProfile profile, ClassLoadProfile.Recorder recorder, Applet applet) {
 		this.config = config;
 		this.gamepack = gamepack;
-		this.intercept = intercept;
+		this.pipeline = pipeline;
+		this.completion = completion;
+		this.profile = profile;
+		this.recorder = recorder;
 		this.applet = applet;
 	}
+
+	/**
+	 * Waits for the gamepack to finish loading, if the game was started
+	 * while it was still being streamed.
+	 * 
+	 * @throws GeneralSecurityException if the gamepack could not be verified
+	 * @throws IOException if the gamepack failed to load
+	 */
+	public void awaitGamepack() throws IOException, GeneralSecurityException {
+		if (completion == null)
+			return;
+
+		try {
+			completion.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			else if (e.getCause() instanceof GeneralSecurityException)
+				throw (GeneralSecurityException) e.getCause();
+			else if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
 }
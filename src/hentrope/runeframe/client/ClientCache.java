@@ -0,0 +1,514 @@
+package hentrope.runeframe.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import hentrope.runeframe.io.ContentDigest;
+
+/**
+ * Implements an indexed on-disk cache of the classes within several
+ * revisions of the gamepack.
+ * <p>
+ * The cache is content-addressed: the data of each class is stored once in
+ * a shared pack file, keyed by its SHA-256 digest, so a class that does not
+ * change between revisions is only stored once. An index maps each digest
+ * to the offset and length of its data within the pack, and a manifest for
+ * each revision maps the name of each class to its digest.
+ * <p>
+ * When a revision is loaded, the pack is mapped into memory as read-only,
+ * allowing classes to be defined directly from the mapping without first
+ * inflating or copying them. Every class is checked against its digest on
+ * a background thread, which overlaps with the rest of the startup, and
+ * {@link #verify()} waits for the result before the cache is used to launch
+ * the game. If a class is found to be corrupt, the revision's manifest is
+ * deleted, so that the gamepack is downloaded again.
+ * <p>
+ * The total size of the classes used by the cached revisions is limited to
+ * {@link #SIZE_LIMIT}. Once the limit is exceeded, the revisions that were
+ * least recently loaded are evicted, and the pack is compacted once enough
+ * of it is no longer used.
+ *
+ * @author hentrope
+ * @see ClientCache#open(File, int)
+ * @see ClientCache#write(File, int, ClientGamepack, Collection)
+ */
+public class ClientCache implements ClassSource {
+	private static final int INDEX_MAGIC = 0x52464349; // "RFCI"
+	private static final int MANIFEST_MAGIC = 0x5246434D; // "RFCM"
+	private static final String INDEX_NAME = "index.dat", PACK_PREFIX = "pack-", PACK_SUFFIX = ".bin",
+			MANIFEST_SUFFIX = ".rev";
+	public static final long SIZE_LIMIT = 64 << 20;
+
+	/**
+	 * Opens the revision with the given ID from the cache stored in the given
+	 * directory, mapping the pack into memory.
+	 *
+	 * @param dir directory containing the cache
+	 * @param id the ID of the gamepack to be loaded
+	 * @return an instance of ClientCache, or null if the cache does not contain the gamepack
+	 * @throws IOException if there is an IOException while reading the cache, or if the cache is malformed or corrupt
+	 */
+	public static ClientCache open(File dir, int id) throws IOException {
+		File manifestFile = getManifest(dir, id);
+		if (!manifestFile.isFile())
+			return null;
+
+		Index index = Index.read(dir);
+		Map<String, ByteBuffer> manifest = readManifest(manifestFile);
+
+		final MappedByteBuffer pack;
+		try (	RandomAccessFile file = new RandomAccessFile(index.getPack(dir), "r");
+				FileChannel channel = file.getChannel() ) {
+			if (channel.size() < index.length)
+				throw new IOException("Cache pack is shorter than its index.");
+
+			// The mapping remains valid after the channel has been closed.
+			pack = channel.map(FileChannel.MapMode.READ_ONLY, 0, index.length);
+		}
+
+		Map<String, Long> regions = new ConcurrentHashMap<String, Long>(manifest.size() * 4 / 3 + 1);
+		for (Map.Entry<String, ByteBuffer> entry: manifest.entrySet()) {
+			Long region = index.blobs.get(entry.getValue());
+			if (region == null)
+				throw new IOException("Cache manifest refers to a missing class.");
+			regions.put(entry.getKey(), region);
+		}
+
+		// Record when the revision was last used, for eviction.
+		manifestFile.setLastModified(System.currentTimeMillis());
+
+		ClientCache cache = new ClientCache(pack, regions, manifest, manifestFile);
+		Thread thread = new Thread(cache.verification, "Cache Verifier");
+		thread.setDaemon(true);
+		thread.start();
+		return cache;
+	}
+
+	/**
+	 * Writes the classes within the given gamepack to the cache. Only classes
+	 * that are not already in the pack are added, after which revisions are
+	 * evicted if the cache is larger than {@link #SIZE_LIMIT}.
+	 * <p>
+	 * Classes named in the given order are added to the pack first, in that
+	 * order, so that new classes can be read from the disk sequentially as
+	 * the game requests them. All other classes follow afterwards.
+	 * <p>
+	 * The pack is written before the index, and the index before the
+	 * manifest, so that an interrupted write will never leave behind a
+	 * manifest or index that refers to missing data.
+	 *
+	 * @param dir directory containing the cache
+	 * @param id the ID of the given gamepack
+	 * @param gamepack gamepack containing the classes to be cached
+	 * @param order binary names of the classes that should be placed first
+	 * @throws IOException if there is an IOException while writing the cache
+	 */
+	public static void write(File dir, int id, ClientGamepack gamepack, Collection<String> order) throws IOException {
+		dir.mkdirs();
+
+		Index index;
+		try {
+			index = Index.read(dir);
+
+			// A pack shorter than its index cannot be appended to.
+			if (index.getPack(dir).length() < index.length)
+				index = new Index(newPackName(), 0);
+		} catch (IOException e) {
+			index = new Index(newPackName(), 0);
+		}
+
+		Map<String, ByteBuffer> manifest = new LinkedHashMap<String, ByteBuffer>();
+		MessageDigest digest = ContentDigest.newDigest();
+		try ( RandomAccessFile pack = new RandomAccessFile(index.getPack(dir), "rw") ) {
+			pack.seek(index.length);
+
+			for (String name: order) {
+				ClientGamepack.Entry file = gamepack.getClassEntry(name);
+				if (file != null && !manifest.containsKey(name))
+					manifest.put(name, add(index, pack, digest, file.data));
+			}
+
+			for (ClientGamepack.Entry file: gamepack) {
+				final String filename = file.entry.getName();
+				if (!filename.endsWith(".class"))
+					continue;
+
+				final String name = ClassSource.formatClassName(filename);
+				if (!manifest.containsKey(name))
+					manifest.put(name, add(index, pack, digest, file.data));
+			}
+		} catch (UncheckedIOException e) {
+			// Thrown by gamepacks that read their files lazily
+			throw e.getCause();
+		}
+
+		index.write(dir);
+		writeManifest(getManifest(dir, id), manifest);
+
+		evict(dir, index, id);
+	}
+
+
+
+	private final MappedByteBuffer pack;
+	private final Map<String, Long> regions;
+	private final Map<String, ByteBuffer> digests;
+	private final File manifestFile;
+	private final FutureTask<Boolean> verification;
+
+	private ClientCache(MappedByteBuffer pack, Map<String, Long> regions, Map<String, ByteBuffer> digests, File manifestFile) {
+		this.pack = pack;
+		this.regions = regions;
+		this.digests = digests;
+		this.manifestFile = manifestFile;
+
+		// Classes removed while this runs are still checked, using a copy of their regions.
+		final Map<String, Long> copy = new HashMap<String, Long>(regions);
+		this.verification = new FutureTask<Boolean>(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				MessageDigest digest = ContentDigest.newDigest();
+				for (Map.Entry<String, Long> entry: copy.entrySet()) {
+					digest.update(slice(pack, entry.getValue()));
+					if (!ByteBuffer.wrap(digest.digest()).equals(digests.get(entry.getKey())))
+						return false;
+				}
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Waits until every class has been checked against its digest. If any
+	 * class is corrupt, the revision's manifest is deleted, and an exception
+	 * is thrown so that the gamepack can be downloaded instead.
+	 *
+	 * @throws IOException if a class does not match its digest
+	 */
+	public void verify() throws IOException {
+		boolean valid;
+		try {
+			valid = verification.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+
+		if (!valid) {
+			manifestFile.delete();
+			throw new IOException("Cached class does not match its digest.");
+		}
+	}
+
+	@Override
+	public Collection<String> getClassNames() {
+		return new ArrayList<String>(regions.keySet());
+	}
+
+	@Override
+	public boolean contains(String name) {
+		return digests.containsKey(name);
+	}
+
+	@Override
+	public ClassSource.Data remove(String name) {
+		Long region = regions.remove(name);
+
+		if (region == null)
+			return null;
+
+		return new ClassSource.Data(slice(pack, region), null);
+	}
+
+	/**
+	 * Appends the given data to the pack, unless data with the same digest
+	 * is already stored.
+	 *
+	 * @return the digest of the data
+	 */
+	private static ByteBuffer add(Index index, RandomAccessFile pack, MessageDigest digest, byte[] data) throws IOException {
+		ByteBuffer hash = ByteBuffer.wrap(digest.digest(data));
+		if (index.blobs.containsKey(hash))
+			return hash;
+
+		if (index.length + data.length > Integer.MAX_VALUE)
+			throw new IOException("Cache pack is too large.");
+
+		pack.write(data);
+		index.blobs.put(hash, (index.length << 32) | data.length);
+		index.length += data.length;
+		return hash;
+	}
+
+	/**
+	 * Removes the least recently used revisions until the classes used by the
+	 * remaining revisions fit within {@link #SIZE_LIMIT}. The given revision
+	 * is always kept. If more than a third of the pack is no longer used by
+	 * any revision, it is compacted.
+	 */
+	private static void evict(File dir, Index index, int keep) throws IOException {
+		File[] manifests = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(MANIFEST_SUFFIX);
+			}
+		});
+		if (manifests == null)
+			return;
+
+		final File kept = getManifest(dir, keep);
+		Arrays.sort(manifests, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				// The kept revision comes first, followed by the most recently used.
+				if (a.equals(kept) != b.equals(kept))
+					return a.equals(kept) ? -1 : 1;
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+
+		Set<ByteBuffer> live = new HashSet<ByteBuffer>();
+		long size = 0;
+		boolean full = false;
+		for (File file: manifests) {
+			Set<ByteBuffer> hashes;
+			try {
+				hashes = full ? Collections.<ByteBuffer>emptySet() : new HashSet<ByteBuffer>(readManifest(file).values());
+			} catch (IOException e) {
+				file.delete();
+				continue;
+			}
+
+			// Revisions that refer to classes missing from the index cannot be loaded.
+			long added = 0;
+			boolean complete = true;
+			for (ByteBuffer hash: hashes) {
+				Long region = index.blobs.get(hash);
+				if (region == null)
+					complete = false;
+				else if (!live.contains(hash))
+					added += (int) (long) region;
+			}
+
+			if (!complete) {
+				file.delete();
+			} else if (full || (!file.equals(kept) && size + added > SIZE_LIMIT)) {
+				full = true;
+				file.delete();
+			} else {
+				live.addAll(hashes);
+				size += added;
+			}
+		}
+
+		if (index.length - size > index.length / 3)
+			compact(dir, index, live);
+		deleteUnusedPacks(dir, index.pack);
+	}
+
+	/**
+	 * Copies the classes that are still used into a new pack, keeping them
+	 * in the same order, and replaces the index. The old pack is deleted
+	 * once the new index is in place.
+	 */
+	private static void compact(File dir, Index index, Set<ByteBuffer> live) throws IOException {
+		List<Map.Entry<ByteBuffer, Long>> blobs = new ArrayList<Map.Entry<ByteBuffer, Long>>();
+		for (Map.Entry<ByteBuffer, Long> entry: index.blobs.entrySet())
+			if (live.contains(entry.getKey()))
+				blobs.add(entry);
+		Collections.sort(blobs, new Comparator<Map.Entry<ByteBuffer, Long>>() {
+			@Override
+			public int compare(Map.Entry<ByteBuffer, Long> a, Map.Entry<ByteBuffer, Long> b) {
+				return Long.compare(a.getValue(), b.getValue());
+			}
+		});
+
+		Index compacted = new Index(newPackName(), 0);
+		try (	FileChannel in = new RandomAccessFile(index.getPack(dir), "r").getChannel();
+				FileChannel out = new RandomAccessFile(compacted.getPack(dir), "rw").getChannel() ) {
+			for (Map.Entry<ByteBuffer, Long> entry: blobs) {
+				long offset = entry.getValue() >>> 32;
+				int length = (int) (long) entry.getValue();
+
+				long copied = 0;
+				while (copied < length)
+					copied += in.transferTo(offset + copied, length - copied, out);
+
+				compacted.blobs.put(entry.getKey(), (compacted.length << 32) | length);
+				compacted.length += length;
+			}
+		}
+
+		compacted.write(dir);
+		index.pack = compacted.pack;
+		index.length = compacted.length;
+		index.blobs = compacted.blobs;
+	}
+
+	/**
+	 * Deletes every pack other than the given one. A pack that is still
+	 * mapped by a running game may fail to be deleted, in which case it is
+	 * deleted by the next write instead.
+	 */
+	private static void deleteUnusedPacks(File dir, final String current) {
+		File[] packs = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				String name = file.getName();
+				return name.startsWith(PACK_PREFIX) && name.endsWith(PACK_SUFFIX) && !name.equals(current);
+			}
+		});
+
+		if (packs != null)
+			for (File pack: packs)
+				pack.delete();
+	}
+
+	private static Map<String, ByteBuffer> readManifest(File file) throws IOException {
+		try ( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))) ) {
+			if (in.readInt() != MANIFEST_MAGIC)
+				throw new IOException("Cache manifest has an invalid header.");
+
+			int count = in.readInt();
+			Map<String, ByteBuffer> manifest = new LinkedHashMap<String, ByteBuffer>(count * 4 / 3 + 1);
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				byte[] hash = new byte[ContentDigest.LENGTH];
+				in.readFully(hash);
+				manifest.put(name, ByteBuffer.wrap(hash));
+			}
+			return manifest;
+		}
+	}
+
+	private static void writeManifest(File file, Map<String, ByteBuffer> manifest) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp))) ) {
+			out.writeInt(MANIFEST_MAGIC);
+			out.writeInt(manifest.size());
+			for (Map.Entry<String, ByteBuffer> entry: manifest.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.write(entry.getValue().array());
+			}
+		}
+		replace(temp, file);
+	}
+
+	private static File getManifest(File dir, int id) {
+		return new File(dir, id + MANIFEST_SUFFIX);
+	}
+
+	private static String newPackName() {
+		return PACK_PREFIX + Long.toHexString(System.currentTimeMillis()) + PACK_SUFFIX;
+	}
+
+	private static ByteBuffer slice(ByteBuffer pack, long region) {
+		int offset = (int) (region >>> 32);
+		int length = (int) region;
+
+		ByteBuffer buffer = pack.duplicate();
+		buffer.position(offset);
+		buffer.limit(offset + length);
+		return buffer;
+	}
+
+	private static void replace(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * The name of the current pack, the length of the data in it that is in
+	 * use, and the region of the pack containing each digest. Each region is
+	 * packed into a single long, with the offset in the upper 32 bits.
+	 */
+	private static class Index {
+		String pack;
+		long length;
+		Map<ByteBuffer, Long> blobs = new HashMap<ByteBuffer, Long>();
+
+		Index(String pack, long length) {
+			this.pack = pack;
+			this.length = length;
+		}
+
+		static Index read(File dir) throws IOException {
+			try ( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir, INDEX_NAME)))) ) {
+				if (in.readInt() != INDEX_MAGIC)
+					throw new IOException("Cache index has an invalid header.");
+
+				Index index = new Index(in.readUTF(), in.readLong());
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					byte[] hash = new byte[ContentDigest.LENGTH];
+					in.readFully(hash);
+					long offset = in.readInt() & 0xFFFFFFFFL;
+					int length = in.readInt();
+
+					if (length < 0 || offset + length > index.length)
+						throw new IOException("Cache index contains an invalid region.");
+
+					index.blobs.put(ByteBuffer.wrap(hash), (offset << 32) | length);
+				}
+				return index;
+			}
+		}
+
+		File getPack(File dir) {
+			return new File(dir, pack);
+		}
+
+		void write(File dir) throws IOException {
+			File file = new File(dir, INDEX_NAME), temp = new File(dir, INDEX_NAME + ".tmp");
+			try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp))) ) {
+				out.writeInt(INDEX_MAGIC);
+				out.writeUTF(pack);
+				out.writeLong(length);
+				out.writeInt(blobs.size());
+				for (Map.Entry<ByteBuffer, Long> entry: blobs.entrySet()) {
+					out.write(entry.getKey().array());
+					out.writeInt((int) (entry.getValue() >>> 32));
+					out.writeInt((int) (long) entry.getValue());
+				}
+			}
+			replace(temp, file);
+		}
+	}
+}
@@ -1,58 +1,86 @@
 package hentrope.runeframe.client;
 
 import java.applet.Applet;
+import java.io.IOException;
 import java.security.CodeSource;
 import java.security.SecureClassLoader;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * A specialized ClassLoader that loads classes from a ClientGamepack instance.
+ * A specialized ClassLoader that loads classes from a {@link ClassSource},
+ * such as a ClientGamepack or ClientCache instance.
  * <p>
  * This ClassLoader uses something similar to lazy initialization, in that
  * it will not actually load a class until it is requested by the client.
+ * Once the applet has been created, any remaining classes can be defined
+ * ahead of time in the background using {@link #predefineClasses()}. If the
+ * order in which the game requests classes has been recorded, those classes
+ * can be defined even earlier using {@link #prefetch(ClassLoadProfile)}.
+ * <p>
+ * Unlike most ClassLoaders, classes contained in the source are defined
+ * without first asking the parent for them, since the parent will never
+ * have any of the game's classes. Only classes in the java, javax and
+ * netscape packages, or those not in the source, are delegated to the
+ * parent. Names that could not be found are remembered, so that repeated
+ * lookups of a missing class fail immediately.
+ * <p>
+ * The source may still be loading when this ClassLoader is created, in
+ * which case a class that has not arrived yet is waited for, rather than
+ * reported as missing. Since the source's contents change as it loads, it
+ * is asked whether it contains each class as the class is requested.
+ * <p>
+ * This ClassLoader is parallel capable, so classes may be loaded by several
+ * threads at once.
  * 
  * @author hentrope
  */
 public class ClientClassLoader extends SecureClassLoader {
-	public static ClientClassLoader fromGamepack(ClientGamepack gamepack) {
-		ClientClassLoader loader = new ClientClassLoader();
-		importClassData(loader, gamepack);
-		return loader;
+	static {
+		registerAsParallelCapable();
 	}
 
-	public static ClientClassLoader fromGamepack(ClientGamepack gamepack, ClassLoader parent) {
-		ClientClassLoader loader = new ClientClassLoader(parent);
-		importClassData(loader, gamepack);
-		return loader;
+	public static ClientClassLoader fromGamepack(ClientGamepack gamepack) {
+		return new ClientClassLoader(gamepack);
 	}
 
-	private static void importClassData(ClientClassLoader loader, ClientGamepack gamepack) {
-		for (ClientGamepack.Entry file: gamepack) {
-			final String name = file.entry.getName();
-
-			if (file.entry.isDirectory() || !name.endsWith(".class"))
-				continue;
-
-			loader.classMap.put(formatClassName(name), file);
-		}
+	public static ClientClassLoader fromGamepack(ClientGamepack gamepack, ClassLoader parent) {
+		return new ClientClassLoader(gamepack, parent);
 	}
 
-	private static String formatClassName(String filename) {
-		return filename.substring(0, filename.length()-6).replaceAll("/", ".");
+	public static ClientClassLoader fromSource(ClassSource source, ClassLoader parent) {
+		return new ClientClassLoader(source, parent);
 	}
 
 
 	
-	private final Map<String, ClientGamepack.Entry> classMap = new HashMap<String, ClientGamepack.Entry>();
+	/**
+	 * Packages whose classes are always loaded by the parent, even if the
+	 * source contains a class with the same name.
+	 */
+	private static final String[] PARENT_PACKAGES = { "java.", "javax.", "netscape." };
+
+	private final ClassSource source;
+	private final Set<String> missing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 	private boolean appletCreated = false;
+	private volatile ClassLoadProfile.Recorder recorder = null;
+	private volatile ClassLoadProfile profile = null;
+	private volatile boolean discarded = false;
+	private final AtomicBoolean reportedLinkageError = new AtomicBoolean();
 
-	private ClientClassLoader() {
+	private ClientClassLoader(ClassSource source) {
 		super();
+		this.source = source;
 	}
 
-	private ClientClassLoader(ClassLoader parent) {
+	private ClientClassLoader(ClassSource source, ClassLoader parent) {
 		super(parent);
+		this.source = source;
 	}
 
 	public Applet createApplet(ClientConfig config) throws ReflectiveOperationException {
@@ -83,13 +111,164 @@ public class ClientClassLoader extends SecureClassLoader {
 		return applet;
 	}
 
+	/**
+	 * Starts recording the order in which the game first requests each of
+	 * the classes defined by this ClassLoader. Requests made by this
+	 * ClassLoader's own background threads are not recorded.
+	 * 
+	 * @param recorder the recorder which will receive each request
+	 */
+	public void record(ClassLoadProfile.Recorder recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Starts a helper thread that defines the classes of a previously
+	 * recorded profile in the order that the game is expected to request
+	 * them, ahead of the game's own requests.
+	 * <p>
+	 * The profile will also be used to order {@link #predefineClasses()}.
+	 * 
+	 * @param profile a profile recorded for the same gamepack
+	 */
+	public void prefetch(ClassLoadProfile profile) {
+		this.profile = profile;
+		new DefinerThread("Class Prefetcher", Thread.NORM_PRIORITY,
+				new ConcurrentLinkedQueue<String>(profile.getOrder())).start();
+	}
+
+	/**
+	 * Starts a pool of low-priority daemon threads that define all of the
+	 * classes remaining in the source, so that the game thread does not
+	 * stall on loading a class the first time it is used.
+	 * <p>
+	 * One thread is started for each core beyond the first. Classes are only
+	 * defined, not initialized, so no game code is run by these threads.
+	 */
+	public void predefineClasses() {
+		final Set<String> names = new LinkedHashSet<String>();
+		if (profile != null)
+			names.addAll(profile.getOrder());
+		names.addAll(source.getClassNames());
+
+		final Queue<String> queue = new ConcurrentLinkedQueue<String>(names);
+		final int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+		for (int i = 0; i < threads; i++)
+			new DefinerThread("Class Predefiner " + i, Thread.MIN_PRIORITY, queue).start();
+	}
+
+	/**
+	 * @return the profile passed to {@link #prefetch(ClassLoadProfile)}, or null if none was given
+	 */
+	public ClassLoadProfile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * @return the recorder passed to {@link #record(ClassLoadProfile.Recorder)}, or null if none was given
+	 */
+	public ClassLoadProfile.Recorder getRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * Stops this ClassLoader's background threads and recording, for when
+	 * the classes it was preparing turn out not to be needed.
+	 */
+	public void discard() {
+		discarded = true;
+		recorder = null;
+	}
+
+	@Override
+	protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		if (missing.contains(name))
+			throw new ClassNotFoundException(name);
+
+		Class<?> c;
+		if (isLocal(name)) {
+			synchronized (getClassLoadingLock(name)) {
+				c = findLoadedClass(name);
+				if (c == null)
+					c = findClass(name);
+				if (resolve)
+					resolveClass(c);
+			}
+		} else {
+			try {
+				c = super.loadClass(name, resolve);
+			} catch (ClassNotFoundException e) {
+				// While the source is loading, the class may still arrive.
+				if (!source.isLoading())
+					missing.add(name);
+				throw e;
+			}
+		}
+
+		ClassLoadProfile.Recorder recorder = this.recorder;
+		if (recorder != null && c.getClassLoader() == this && !(Thread.currentThread() instanceof DefinerThread))
+			recorder.record(name);
+
+		return c;
+	}
+
+	/**
+	 * Determines whether a class should be defined by this ClassLoader
+	 * without first delegating to the parent.
+	 */
+	private boolean isLocal(String name) {
+		for (String prefix: PARENT_PACKAGES)
+			if (name.startsWith(prefix))
+				return false;
+		return source.contains(name);
+	}
+
 	@Override
 	public Class<?> findClass(String name) throws ClassNotFoundException {
-		ClientGamepack.Entry file = classMap.remove(name);
+		ClassSource.Data data;
+		try {
+			data = source.remove(name);
+		} catch (IOException e) {
+			throw new ClassNotFoundException(name, e);
+		}
 
-		if (file != null)
-			return defineClass(name, file.data, 0, file.data.length, new CodeSource(null, file.entry.getCertificates()));
+		if (data != null)
+			return defineClass(name, data.buffer, new CodeSource(null, data.certificates));
 		else
 			throw new ClassNotFoundException(name);
 	}
+
+	/**
+	 * A daemon thread that defines each class from a shared queue of names
+	 * until the queue is empty.
+	 */
+	private class DefinerThread extends Thread {
+		private final Queue<String> queue;
+
+		DefinerThread(String name, int priority, Queue<String> queue) {
+			super(name);
+			this.queue = queue;
+			setDaemon(true);
+			setPriority(priority);
+		}
+
+		@Override
+		public void run() {
+			String name;
+			while (!discarded && (name = queue.poll()) != null) {
+				try {
+					loadClass(name);
+				} catch (ClassNotFoundException e) {
+					// A profile recorded for an older revision names classes that no longer exist.
+				} catch (LinkageError e) {
+					// The game thread will hit the same error, so only the first is reported.
+					if (reportedLinkageError.compareAndSet(false, true)) {
+						System.err.println("Unable to predefine class " + name);
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
 }
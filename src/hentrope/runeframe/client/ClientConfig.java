@@ -6,22 +6,46 @@ import java.applet.AppletStub;
 import java.applet.AudioClip;
 import java.awt.Desktop;
 import java.awt.Image;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.UnknownHostException;
 import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import hentrope.runeframe.io.HttpValidator;
+import hentrope.runeframe.io.Network;
 import hentrope.runeframe.util.OperatingSystem;
 
 /**
@@ -36,8 +60,33 @@ import hentrope.runeframe.util.OperatingSystem;
  */
 public final class ClientConfig implements AppletContext, AppletStub {
 	private final static String
-	URL_PREFIX = "http://oldschool",
-	URL_SUFFIX = ".runescape.com/jav_config.ws";
+	HOST_PREFIX = "oldschool",
+	HOST_SUFFIX = ".runescape.com",
+	URL_PREFIX = "http://" + HOST_PREFIX,
+	URL_SUFFIX = HOST_SUFFIX + "/jav_config.ws";
+	private final static int CACHE_MAGIC = 0x52464353; // "RFCS"
+
+	/**
+	 * Worlds whose configuration is requested alongside the preferred and
+	 * default worlds when using {@link #fromWorlds(int[], File, int)}.
+	 */
+	public final static int[] FALLBACK_WORLDS = { 301, 302 };
+
+	/**
+	 * Number of milliseconds that the preferred world is given to respond
+	 * before a configuration from another world is used instead.
+	 */
+	public final static int PREFERRED_GRACE = 1500;
+
+	/**
+	 * Returns the hostname of the given world.
+	 * 
+	 * @param world the world number, such as 301
+	 * @return the hostname of the world's server
+	 */
+	public static String getWorldHost(int world) {
+		return HOST_PREFIX + (world - 300) + HOST_SUFFIX;
+	}
 
 	/**
 	 * Downloads and returns the client configuration from a given world.
@@ -48,10 +97,24 @@ public final class ClientConfig implements AppletContext, AppletStub {
 	 * @see ClientConfig#fromURL(URL)
 	 */
 	public static ClientConfig fromWorld(int world) throws IOException {
+		return fromWorld(world, null);
+	}
+
+	/**
+	 * Downloads and returns the client configuration from a given world,
+	 * revalidating the copy stored in the given cache file if there is one.
+	 * 
+	 * @param world which server should be used to retrieve the configuration
+	 * @param cache file in which the last configuration received is stored, or null if it should not be cached
+	 * @return a ClientConfig instance containing all of the key-value pairs from the config
+	 * @throws IOException if there was an exception getting the config, or if the world is less than 301
+	 * @see ClientConfig#fromURL(URL, File)
+	 */
+	public static ClientConfig fromWorld(int world, File cache) throws IOException {
 		world -= 300;
 		if (world < 1)
-			throw new UnknownHostException("oldschool" + world + ".runescape.com");
-		return fromURL(new URL(URL_PREFIX + world + URL_SUFFIX));
+			throw new UnknownHostException(HOST_PREFIX + world + HOST_SUFFIX);
+		return fromURL(new URL(URL_PREFIX + world + URL_SUFFIX), cache);
 	}
 	
 	/**
@@ -62,7 +125,20 @@ public final class ClientConfig implements AppletContext, AppletStub {
 	 * @see ClientConfig#fromURL(URL)
 	 */
 	public static ClientConfig fromDefaultWorld() throws IOException {
-		return fromURL(new URL(URL_PREFIX + URL_SUFFIX));
+		return fromDefaultWorld(null);
+	}
+
+	/**
+	 * Downloads and returns the client configuration from a default world,
+	 * revalidating the copy stored in the given cache file if there is one.
+	 * 
+	 * @param cache file in which the last configuration received is stored, or null if it should not be cached
+	 * @return a ClientConfig instance containing all of the key-value pairs from the config
+	 * @throws IOException if there was an exception getting the config
+	 * @see ClientConfig#fromURL(URL, File)
+	 */
+	public static ClientConfig fromDefaultWorld(File cache) throws IOException {
+		return fromURL(new URL(URL_PREFIX + URL_SUFFIX), cache);
 	}
 
 	/**
@@ -73,9 +149,184 @@ public final class ClientConfig implements AppletContext, AppletStub {
 	 * @throws IOException if there was an exception getting the config
 	 */
 	public static ClientConfig fromURL(URL url) throws IOException {
-		final URLConnection connection = url.openConnection();
+		return fromURL(url, null);
+	}
+
+	/**
+	 * Downloads and returns the client configuration from a given URL.
+	 * <p>
+	 * If the cache file contains a configuration previously received from
+	 * the same URL, the request is made conditional on its ETag and
+	 * Last-Modified date. If the server responds that the configuration has
+	 * not been modified, the cached copy is used instead. Otherwise, the new
+	 * configuration is stored in the cache file, along with its validator if
+	 * it has one.
+	 * 
+	 * @param url URL that points to the client configuration to be downloaded
+	 * @param cache file in which the last configuration received is stored, or null if it should not be cached
+	 * @return a ClientConfig instance containing all of the key-value pairs from the config
+	 * @throws IOException if there was an exception getting the config
+	 */
+	public static ClientConfig fromURL(URL url, File cache) throws IOException {
+		Request request = new Request(url, Cached.read(cache), 0);
+		request.run();
+		return request.getResult(cache);
+	}
+
+	/**
+	 * Returns the last client configuration stored in the given cache file,
+	 * without making any requests. Since the configuration may be out of
+	 * date, it should only be used to begin work that can be discarded if
+	 * the current configuration turns out to be different.
+	 * 
+	 * @param cache file in which the last configuration received is stored
+	 * @return a ClientConfig instance containing all of the key-value pairs from the config, or null if none is stored
+	 */
+	public static ClientConfig fromSnapshot(File cache) {
+		Cached cached = Cached.read(cache);
+		if (cached == null)
+			return null;
+
+		try {
+			return parse(cached.data);
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Requests the client configuration from several worlds at the same
+	 * time. The first of the given worlds is preferred, and the default
+	 * world is always included, along with {@link #FALLBACK_WORLDS}.
+	 * <p>
+	 * Each request is given the same deadline. Once a valid configuration
+	 * has been chosen, or the deadline has passed, the remaining requests
+	 * are cancelled. Only the configuration that is returned will be stored
+	 * in the cache file.
+	 * 
+	 * @param worlds the preferred worlds, such as the user's home world, in order of preference. Worlds less than 301 are ignored
+	 * @param cache file in which the last configuration received is stored, or null if it should not be cached
+	 * @param timeout number of milliseconds to wait for a valid configuration
+	 * @return a ClientConfig instance containing all of the key-value pairs from the config
+	 * @throws IOException if every request failed, or if none succeeded before the deadline
+	 * @see ClientConfig#fromURL(URL, File)
+	 */
+	public static ClientConfig fromWorlds(int[] worlds, File cache, int timeout) throws IOException {
+		Set<URL> urls = new LinkedHashSet<URL>();
+		for (int world: worlds)
+			if (world > 300)
+				urls.add(new URL(URL_PREFIX + (world - 300) + URL_SUFFIX));
+		urls.add(new URL(URL_PREFIX + URL_SUFFIX));
+		for (int world: FALLBACK_WORLDS)
+			urls.add(new URL(URL_PREFIX + (world - 300) + URL_SUFFIX));
+
+		return fromURLs(urls, cache, timeout);
+	}
+
+	/**
+	 * Requests the client configuration from several URLs at the same time.
+	 * <p>
+	 * The first URL is preferred: its configuration is used if it is valid
+	 * and arrives within {@link #PREFERRED_GRACE} milliseconds. Otherwise,
+	 * or if it fails, the first valid configuration received from any other
+	 * URL is used instead. The other requests are started at the same time,
+	 * so that they are ready if the preferred URL turns out to be slow.
+	 * 
+	 * @param urls URLs that point to the client configuration to be downloaded
+	 * @param cache file in which the last configuration received is stored, or null if it should not be cached
+	 * @param timeout number of milliseconds to wait for a valid configuration
+	 * @return a ClientConfig instance containing all of the key-value pairs from the config
+	 * @throws IOException if every request failed, or if none succeeded before the deadline
+	 * @see ClientConfig#fromWorlds(int[], File, int)
+	 */
+	public static ClientConfig fromURLs(Collection<URL> urls, File cache, int timeout) throws IOException {
+		Cached cached = Cached.read(cache);
+		final BlockingQueue<Request> completed = new LinkedBlockingQueue<Request>();
+		List<Request> requests = new ArrayList<Request>();
+		for (URL url: urls) {
+			final Request request = new Request(url, cached, timeout);
+			requests.add(request);
+
+			Thread thread = new Thread( new Runnable() {
+				@Override
+				public void run() {
+					request.run();
+					completed.add(request);
+				}
+			}, "Config " + url.getHost() );
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		long start = System.nanoTime();
+		long deadline = start + timeout * 1000000L;
+		long grace = start + Math.min(timeout, PREFERRED_GRACE) * 1000000L;
+		Request preferred = requests.isEmpty() ? null : requests.get(0);
+		boolean preferredDone = false;
+		Queue<Request> waiting = new ArrayDeque<Request>();
+		IOException failure = null;
+		try {
+			int received = 0;
+			while (true) {
+				// Once the preferred URL has failed or had its chance, use the others in the order they arrived.
+				if (preferredDone || System.nanoTime() - grace >= 0) {
+					Request request;
+					while ((request = waiting.poll()) != null) {
+						try {
+							return request.getResult(cache);
+						} catch (IOException e) {
+							failure = addFailure(failure, e);
+						}
+					}
+				}
+
+				if (received == requests.size())
+					break;
+
+				boolean holding = !preferredDone && !waiting.isEmpty();
+				long remaining = (holding ? grace : deadline) - System.nanoTime();
+				Request request = remaining > 0 ? completed.poll(remaining, TimeUnit.NANOSECONDS) : null;
+				if (request == null) {
+					if (holding)
+						continue;
+					break;
+				}
+				received++;
+
+				if (request != preferred)
+					waiting.add(request);
+				else {
+					try {
+						return request.getResult(cache);
+					} catch (IOException e) {
+						failure = addFailure(failure, e);
+						preferredDone = true;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			for (Request request: requests)
+				request.cancel();
+		}
+
+		if (failure == null)
+			failure = new SocketTimeoutException("No world responded within " + timeout + "ms.");
+		throw failure;
+	}
+
+	private static IOException addFailure(IOException failure, IOException e) {
+		if (failure == null)
+			return e;
+		failure.addSuppressed(e);
+		return failure;
+	}
+
+	private static ClientConfig parse(byte[] data) throws IOException {
 		final BufferedReader reader = new BufferedReader( new InputStreamReader(
-				connection.getInputStream() ) );
+				new ByteArrayInputStream(data) ) );
 		final ClientConfig config = new ClientConfig();
 		
 		try {
@@ -94,10 +345,143 @@ public final class ClientConfig implements AppletContext, AppletStub {
 		} finally {
 			reader.close();
 		}
+
+		/*
+		 * Build the table used by getParameter ahead of time, so that the
+		 * applet's lookups do not need to build a new key each time.
+		 */
+		for (Entry<String, String> entry: config.param.entrySet()) {
+			String key = entry.getKey();
+			if (key.startsWith("param-") && key.length() > 6) {
+				char startChar = key.charAt(6);
+				if (startChar >= '0' && startChar <= '9')
+					config.parameters.put(key.substring(6), entry.getValue());
+			}
+		}
 		
 		return config;
 	}
 	
+	/**
+	 * A configuration stored in the cache file, along with its validator if
+	 * it had one.
+	 */
+	private static class Cached {
+		final HttpValidator validator;
+		final byte[] data;
+
+		Cached(HttpValidator validator, byte[] data) {
+			this.validator = validator;
+			this.data = data;
+		}
+
+		static Cached read(File cache) {
+			if (cache == null || !cache.isFile())
+				return null;
+
+			try ( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache))) ) {
+				if (in.readInt() != CACHE_MAGIC)
+					return null;
+
+				HttpValidator validator = in.readBoolean() ? HttpValidator.read(in) : null;
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				return new Cached(validator, data);
+			} catch (IOException | NegativeArraySizeException e) {
+				return null;
+			}
+		}
+
+		void write(File cache) {
+			try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cache))) ) {
+				out.writeInt(CACHE_MAGIC);
+				out.writeBoolean(validator != null);
+				if (validator != null)
+					validator.write(out);
+				out.writeInt(data.length);
+				out.write(data);
+			} catch (IOException e) {
+				System.err.println("Unable to save client config to disk.");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * A single request for the client configuration, which may be cancelled
+	 * from another thread.
+	 */
+	private static class Request implements Runnable {
+		private final URL url;
+		private final Cached cached;
+		private final int timeout;
+		private volatile URLConnection connection = null;
+		private volatile boolean cancelled = false;
+		private ClientConfig config = null;
+		private Cached received = null;
+		private Exception failure = null;
+
+		Request(URL url, Cached cached, int timeout) {
+			this.url = url;
+			this.cached = cached != null && cached.validator != null && cached.validator.appliesTo(url) ? cached : null;
+			this.timeout = timeout;
+		}
+
+		@Override
+		public void run() {
+			try {
+				connection = timeout > 0 ? Network.open(url, timeout) : Network.open(url);
+				if (cached != null)
+					cached.validator.addTo(connection);
+				if (cancelled)
+					return;
+
+				try ( InputStream in = connection.getInputStream() ) {
+					if (cached != null && HttpValidator.isNotModified(connection)) {
+						config = parse(cached.data);
+					} else {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						byte[] buff = new byte[4096];
+						int bytesRead;
+						while ((bytesRead = in.read(buff)) > 0)
+							out.write(buff, 0, bytesRead);
+						byte[] data = out.toByteArray();
+
+						config = parse(data);
+						received = new Cached(HttpValidator.fromConnection(url, connection), data);
+					}
+				}
+			} catch (Exception e) {
+				failure = e;
+			}
+		}
+
+		/**
+		 * Returns the configuration received by this request, storing it in
+		 * the cache file if it was not already cached. Must only be called
+		 * once the request has completed.
+		 */
+		ClientConfig getResult(File cache) throws IOException {
+			if (failure instanceof IOException)
+				throw (IOException) failure;
+			else if (failure != null)
+				throw new IOException("Malformed config from " + url, failure);
+			else if (config == null || config.get(Key.CODEBASE) == null || config.get(Key.DOWNLOAD) == null)
+				throw new IOException("Incomplete config from " + url);
+
+			if (cache != null && received != null)
+				received.write(cache);
+			return config;
+		}
+
+		void cancel() {
+			cancelled = true;
+			URLConnection connection = this.connection;
+			if (connection instanceof HttpURLConnection)
+				((HttpURLConnection) connection).disconnect();
+		}
+	}
+
 	/*
 	 * A class containing some of the client configuation's keys.
 	 */
@@ -111,6 +495,7 @@ public final class ClientConfig implements AppletContext, AppletStub {
 
 	
 	private final HashMap<String, String> param = new HashMap<String, String>();
+	private final HashMap<String, String> parameters = new HashMap<String, String>();
 	
 	private ClientConfig() {}
 	
@@ -165,13 +550,8 @@ public final class ClientConfig implements AppletContext, AppletStub {
 
 	@Override
 	public String getParameter(String key) {
-		// If the starting character of parameter begins with a number
-		char startChar = key.charAt(0);
-		if (startChar >= '0' && startChar <= '9')
-			// Return the parameter as it is saved with a "param-" prefix
-			return param.get("param-" + key);
-		else
-			return null;
+		// Only parameters beginning with a number are included in the table
+		return parameters.get(key);
 	}
 
 	@Override
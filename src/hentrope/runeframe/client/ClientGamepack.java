@@ -1,68 +1,124 @@
 package hentrope.runeframe.client;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.GeneralSecurityException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.cert.Certificate;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.jar.JarEntry;
-import java.util.jar.JarInputStream;
+import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 
-import hentrope.runeframe.util.CertificateVerifier;
-
 /**
- * Implements the process used to load a gamepack from an InputStream.
+ * Holds the files of a gamepack streamed by a {@link GamepackPipeline},
+ * or loaded from a JAR file on disk, either lazily or all at once into a
+ * single buffer.
  * 
  * @author hentrope
- * @see ClientGamepack#fromStream(InputStream, CertificateVerifier)
+ * @see GamepackPipeline
+ * @see ClientGamepack#fromFile(File)
+ * @see ClientGamepack#readFile(File, boolean)
  */
-public class ClientGamepack implements Iterable<ClientGamepack.Entry> {
+public class ClientGamepack implements Iterable<ClientGamepack.Entry>, ClassSource, Closeable {
 	public static final int BUFFER_SIZE = 4096, BYTESTREAM_SIZE = 65536;
 
 	/**
-	 * Loads a gamepack from the given InputStream, returning the gamepack data
-	 * in a new ClientGamepack instance.
+	 * Opens a gamepack stored in the given JAR file without reading any of
+	 * its entries.
+	 * <p>
+	 * Rather than holding the data of every file in memory, the returned
+	 * gamepack uses random access into the JAR, inflating each class only
+	 * when it is first requested. Classes that are never requested are never
+	 * read. Since this is intended for a locally cached gamepack, the JAR
+	 * will not be verified.
 	 * 
-	 * @param stream stream from which to load the gamepack. Must not be compressed
-	 * @param verifier CertificateVerifier instance used to verify the JAR's contents. If null, the gamepack will not be verified
+	 * @param file JAR file from which to load the gamepack
 	 * @return an instance of ClientGamepack
-	 * @throws GeneralSecurityException if there is a GeneralSecurityException while attempting to validate the gamepack
-	 * @throws IOException if there is an IOException while attempting to load the gamepack
-	 * @throws SecurityException if there is a SecurityException while attempting to validate the gamepack
-	 */
-	public static ClientGamepack fromStream(final InputStream stream, final CertificateVerifier verifier)
-			throws GeneralSecurityException, IOException, SecurityException {
-		try (	JarInputStream in = new JarInputStream(stream, verifier != null);
-				ByteArrayOutputStream out = new ByteArrayOutputStream(BYTESTREAM_SIZE) ) {
-			byte[] buff = new byte[BUFFER_SIZE];
-			ClientGamepack gamepack = new ClientGamepack(in.getManifest());
-
-			JarEntry entry = null;
-			while ((entry = in.getNextJarEntry()) != null) {
-				if (entry.isDirectory() || isUnverifiable(entry.getName())) {
-					while (in.read(buff, 0, buff.length) > 0);
-				} else {
-					int bytesRead;
-					while ((bytesRead = in.read(buff, 0, buff.length)) > 0)
-						out.write(buff, 0, bytesRead);
-					
-					if (verifier != null)
-						verifier.verify(entry.getCertificates());
-
-					gamepack.fileList.add(new ClientGamepack.Entry(new JarEntry(entry), out.toByteArray()));
-					out.reset();
-				}
-			}
+	 * @throws IOException if there is an IOException while opening the JAR file
+	 */
+	public static ClientGamepack fromFile(final File file) throws IOException {
+		return new LazyGamepack(new JarFile(file, false));
+	}
+
+	/**
+	 * Reads every entry of the given JAR file into a single buffer, inflating
+	 * them in parallel on a {@link ForkJoinPool}.
+	 * <p>
+	 * The size of each entry is taken from the JAR's central directory, so
+	 * that the buffer can be allocated once, and each entry inflated
+	 * directly into its own slice of the buffer. Entries are kept in the
+	 * order they are stored in the JAR. As with {@link #fromFile(File)}, the
+	 * JAR will not be verified, since its digest is checked separately.
+	 * 
+	 * @param file JAR file from which to load the gamepack
+	 * @param direct whether the buffer should be allocated outside of the heap
+	 * @return an instance of ClientGamepack
+	 * @throws IOException if there is an IOException while reading the JAR file
+	 */
+	public static ClientGamepack readFile(final File file, boolean direct) throws IOException {
+		return ArenaGamepack.read(file, direct);
+	}
 
-			while (stream.read(buff) > 0);
+	/**
+	 * Reads the data of the given entry into an array of exactly the size
+	 * recorded in the JAR's central directory.
+	 *
+	 * @param jar the JAR containing the entry
+	 * @param entry an entry within the JAR
+	 * @return the uncompressed data of the entry
+	 * @throws IOException if there is an IOException while inflating the entry
+	 */
+	static byte[] read(JarFile jar, JarEntry entry) throws IOException {
+		try ( InputStream in = jar.getInputStream(entry) ) {
+			long size = entry.getSize();
 
-			return gamepack;
+			if (size >= 0) {
+				byte[] data = new byte[(int) size];
+				int offset = 0;
+				while (offset < data.length) {
+					int bytesRead = in.read(data, offset, data.length - offset);
+					if (bytesRead < 0)
+						throw new EOFException(entry.getName());
+					offset += bytesRead;
+				}
+				return data;
+			} else {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(BYTESTREAM_SIZE);
+				byte[] buff = new byte[BUFFER_SIZE];
+				int bytesRead;
+				while ((bytesRead = in.read(buff, 0, buff.length)) > 0)
+					out.write(buff, 0, bytesRead);
+				return out.toByteArray();
+			}
 		}
 	}
 
+	/**
+	 * Copies every file of this gamepack into a single buffer, as used by
+	 * {@link #readFile(File, boolean)}, so that the thousands of arrays and
+	 * entries holding them can be collected. This gamepack must have
+	 * finished loading, and should not be used afterwards.
+	 * 
+	 * @param direct whether the buffer should be allocated outside of the heap
+	 * @return a new ClientGamepack containing the same files
+	 */
+	public ClientGamepack compact(boolean direct) {
+		return ArenaGamepack.copyOf(this, direct);
+	}
+
 	/**
 	 * Determines whether a file with the given name can be verified.
 	 * <p>
@@ -82,39 +138,263 @@ public class ClientGamepack implements Iterable<ClientGamepack.Entry> {
 
 
 
-	private final Manifest manifest;
-	private final List<ClientGamepack.Entry> fileList = new ArrayList<ClientGamepack.Entry>();
+	private volatile Manifest manifest;
+
+	/**
+	 * Every file in the gamepack, keyed by file name in the order they were
+	 * added. Classes that have been removed are kept until the gamepack is
+	 * released, and are dropped as soon as they are removed afterwards.
+	 */
+	private final Map<String, ClientGamepack.Entry> files = new LinkedHashMap<String, ClientGamepack.Entry>();
+	private final Set<String> removed = new HashSet<String>();
+	private boolean loading = false, released = false;
+	private Throwable failure = null;
+
+	ClientGamepack(Manifest manifest) {
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Marks this gamepack as still loading, so that {@link #remove(String)}
+	 * waits for classes that have not been added yet.
+	 */
+	synchronized void begin() {
+		loading = true;
+	}
+
+	/**
+	 * Marks this gamepack as finished loading, waking anything waiting for
+	 * a class.
+	 *
+	 * @param failure the reason the gamepack failed to load, or null if it loaded successfully
+	 */
+	synchronized void finish(Throwable failure) {
+		this.loading = false;
+		this.failure = failure;
+		notifyAll();
+	}
 
-	private ClientGamepack(Manifest manifest) {
+	void setManifest(Manifest manifest) {
 		this.manifest = manifest;
 	}
 
+	synchronized void add(ClientGamepack.Entry file) {
+		final String name = file.entry.getName();
+		final boolean isClass = name.endsWith(".class");
+
+		// Once released, only classes that have yet to be defined are kept.
+		if (released && !isClass)
+			return;
+
+		files.put(name, file);
+		if (isClass && loading)
+			notifyAll();
+	}
+
+	private static String getFileName(String name) {
+		return name.replace('.', '/') + ".class";
+	}
+
+	/**
+	 * Retrieves the file containing the class with the given name, regardless
+	 * of whether it has been removed by a ClassLoader, unless the gamepack
+	 * has since been released.
+	 * 
+	 * @param name the binary name of the class
+	 * @return the file containing the class, or null if there is no such class
+	 * @throws IOException if there is an IOException while reading the file
+	 */
+	synchronized Entry getClassEntry(String name) throws IOException {
+		return files.get(getFileName(name));
+	}
+
 	public Manifest getManifest() {
 		return manifest;
 	}
 
+	/**
+	 * While the gamepack is streaming, a class that has not arrived yet is
+	 * recognised by its entry in the manifest, which arrives first and lists
+	 * every signed file in the JAR.
+	 */
+	@Override
+	public synchronized boolean contains(String name) {
+		final String filename = getFileName(name);
+		if (files.containsKey(filename) || removed.contains(name))
+			return true;
+
+		Manifest manifest = this.manifest;
+		return loading && manifest != null && manifest.getAttributes(filename) != null;
+	}
+
+	/**
+	 * Returns an iterator over every file in the gamepack, or only the
+	 * classes that have yet to be defined once it has been released. This
+	 * must not be used until the gamepack has finished loading.
+	 */
+	@Override
+	public synchronized Iterator<Entry> iterator() {
+		return new ArrayList<ClientGamepack.Entry>(files.values()).iterator();
+	}
+
+	@Override
+	public synchronized Collection<String> getClassNames() {
+		List<String> names = new ArrayList<String>();
+		for (String filename: files.keySet()) {
+			if (filename.endsWith(".class")) {
+				String name = ClassSource.formatClassName(filename);
+				if (!removed.contains(name))
+					names.add(name);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * If the gamepack is still loading, and does not yet contain the class,
+	 * this waits for the class to be added.
+	 */
+	@Override
+	public synchronized ClassSource.Data remove(String name) throws IOException {
+		final String filename = getFileName(name);
+
+		ClientGamepack.Entry file;
+		while ((file = files.get(filename)) == null && loading) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+
+		if (file == null) {
+			if (failure != null)
+				throw new IOException("Gamepack failed to load.", failure);
+			return null;
+		}
+
+		// Until released, the file is kept so that it can be written to the indexed cache.
+		if (released)
+			files.remove(filename);
+		else if (!removed.add(name))
+			return null;
+
+		return new ClassSource.Data(ByteBuffer.wrap(file.data), file.certificates);
+	}
+
 	@Override
-	public Iterator<Entry> iterator() {
-		return fileList.iterator();
+	public synchronized boolean isLoading() {
+		return loading;
+	}
+
+	/**
+	 * Stops keeping the data of every file that the game no longer needs.
+	 * Classes that have already been removed are dropped, along with every
+	 * file that is not a class, since the game cannot request those. Each
+	 * class removed afterwards is dropped as soon as it has been defined.
+	 * <p>
+	 * Once released, {@link #iterator()} and {@link #getClassEntry(String)}
+	 * no longer return the files that were dropped, so this must not be
+	 * called until the gamepack has been written to the indexed cache.
+	 */
+	public synchronized void release() {
+		if (released)
+			return;
+		released = true;
+
+		Iterator<String> names = files.keySet().iterator();
+		while (names.hasNext()) {
+			String filename = names.next();
+			if (!filename.endsWith(".class") || removed.contains(ClassSource.formatClassName(filename)))
+				names.remove();
+		}
+		removed.clear();
+	}
+
+	/**
+	 * Returns the number of bytes of file data still held by this gamepack,
+	 * not counting classes that are in the middle of being defined.
+	 * 
+	 * @return the size of the data retained by this gamepack
+	 * @see #release()
+	 */
+	public synchronized long getRetainedBytes() {
+		long bytes = 0;
+		for (ClientGamepack.Entry file: files.values())
+			bytes += file.data.length;
+		return bytes;
+	}
+
+	/**
+	 * Starts a low-priority daemon thread that prints the number of bytes
+	 * retained by this gamepack once every interval, until it has finished
+	 * loading and none remain.
+	 * 
+	 * Used to debug.
+	 * 
+	 * @param interval time between each report, in milliseconds
+	 * @return the thread that was started
+	 * @see #getRetainedBytes()
+	 */
+	public Thread startMonitor(final long interval) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final long start = System.currentTimeMillis();
+				while (true) {
+					long bytes = getRetainedBytes();
+					System.out.println(String.format("Gamepack retains %d bytes after %d s",
+							bytes, (System.currentTimeMillis() - start) / 1000));
+					if (bytes == 0 && !isLoading())
+						return;
+
+					try {
+						Thread.sleep(interval);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "Gamepack Monitor");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+		return thread;
 	}
 
+	/**
+	 * Releases any files held open by this gamepack. Classes can no longer be
+	 * loaded from the gamepack once it has been closed.
+	 * 
+	 * @throws IOException if there is an IOException while closing a file
+	 */
+	@Override
+	public void close() throws IOException {}
+
 	/**
 	 * Prints the names of all files in the gamepack.
 	 * 
 	 * Used to debug.
 	 */
 	public void print() {
-		for (ClientGamepack.Entry file: fileList)
+		for (ClientGamepack.Entry file: this)
 			System.out.println(file.entry.getName());
 	}
 
 	public static class Entry {
 		public final JarEntry entry;
 		public final byte[] data;
+		public final Certificate[] certificates;
 
 		Entry(JarEntry entry, byte[] data) {
+			this(entry, data, entry.getCertificates());
+		}
+
+		Entry(JarEntry entry, byte[] data, Certificate[] certificates) {
 			this.entry = entry;
 			this.data = data;
+			this.certificates = certificates;
 		}
 	}
 }
@@ -0,0 +1,226 @@
+package hentrope.runeframe.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chooses the encoding in which to download the gamepack, based on a history
+ * of how long previous downloads spent on the network and decoding.
+ * <p>
+ * Pack200 produces the smallest download, but is expensive to unpack. On a
+ * fast connection, a larger download that is cheap to decode will finish
+ * sooner. Since the stages of the {@link GamepackPipeline} run at the same
+ * time, the time taken to load the gamepack is estimated as whichever is
+ * slower: downloading it, or decoding it. Both are measured per byte of the
+ * decoded JAR, so that estimates can be compared between encodings without
+ * knowing the size of the next gamepack.
+ * <p>
+ * Encodings that have never been measured are estimated from typical
+ * compression ratios and decoding speeds. Until the bandwidth has been
+ * measured, pack200-gzip is always chosen.
+ *
+ * @author hentrope
+ * @see EncodingPolicy#read(File)
+ * @see EncodingPolicy#choose()
+ */
+public class EncodingPolicy {
+	private static final int MAGIC = 0x52464532; // "RFE2", since costs used to be measured in elapsed time
+	public static final String PACK200_GZIP = "pack200-gzip", GZIP = "gzip", IDENTITY = "identity";
+
+	/**
+	 * Encodings that may be requested, in order of preference when their
+	 * estimates are equal.
+	 */
+	public static final String[] ENCODINGS = { PACK200_GZIP, GZIP, IDENTITY };
+
+	/**
+	 * Reads the history of previous downloads stored in the given file.
+	 *
+	 * @param file file containing the history
+	 * @return an instance of EncodingPolicy, which will have no history if the file does not exist or is malformed
+	 */
+	public static EncodingPolicy read(File file) {
+		EncodingPolicy policy = new EncodingPolicy();
+		if (!file.isFile())
+			return policy;
+
+		try ( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))) ) {
+			if (in.readInt() != MAGIC)
+				return policy;
+
+			policy.bandwidth = in.readDouble();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++)
+				policy.history.put(in.readUTF(), new Cost(in.readDouble(), in.readDouble()));
+		} catch (IOException e) {
+			policy.bandwidth = -1;
+			policy.history.clear();
+		}
+
+		return policy;
+	}
+
+	/**
+	 * Returns the key under which an encoding is recorded, given the value
+	 * of a Content-Encoding header.
+	 *
+	 * @param contentEncoding the Content-Encoding of a response, or null if it had none
+	 * @return one of {@link #ENCODINGS}, or the given encoding if it is not one of them
+	 */
+	public static String normalize(String contentEncoding) {
+		if (contentEncoding == null || contentEncoding.isEmpty())
+			return IDENTITY;
+		return contentEncoding.trim().toLowerCase();
+	}
+
+
+
+	private final Map<String, Cost> history = new HashMap<String, Cost>();
+	private double bandwidth = -1;
+
+	private EncodingPolicy() {}
+
+	/**
+	 * Returns the encoding expected to load the gamepack in the least time.
+	 *
+	 * @return one of {@link #ENCODINGS}, suitable for an Accept-Encoding header
+	 */
+	public synchronized String choose() {
+		String best = PACK200_GZIP;
+		double bestEstimate = estimate(best);
+		for (String encoding: ENCODINGS) {
+			double estimate = estimate(encoding);
+			if (estimate >= 0 && estimate < bestEstimate) {
+				best = encoding;
+				bestEstimate = estimate;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Estimates the time taken to download and decode each byte of the JAR
+	 * using the given encoding.
+	 *
+	 * @param encoding one of {@link #ENCODINGS}
+	 * @return a number of nanoseconds, or -1 if the bandwidth has not been measured
+	 */
+	public synchronized double estimate(String encoding) {
+		if (bandwidth <= 0)
+			return -1;
+
+		Cost cost = getCost(encoding);
+		return Math.max(cost.ratio * 1e9 / bandwidth, cost.decodeNanos);
+	}
+
+	/**
+	 * Records the timings of a gamepack downloaded using the given encoding.
+	 * The measurements are combined with the previous history.
+	 * <p>
+	 * The bandwidth is only measured if the whole gamepack was downloaded,
+	 * since data read back from a partial download arrives far faster than
+	 * the network could provide it.
+	 *
+	 * @param contentEncoding the Content-Encoding of the download, or null if it had none
+	 * @param pipeline the pipeline that loaded the gamepack
+	 * @param resumed whether part of the download was read from a previous attempt
+	 */
+	public synchronized void record(String contentEncoding, GamepackPipeline pipeline, boolean resumed) {
+		GamepackPipeline.Stage network = pipeline.getStages().get(0), inflate = pipeline.getStages().get(1);
+		if (inflate.getUnits() <= 0)
+			return;
+
+		String encoding = normalize(contentEncoding);
+		Cost measured = new Cost(
+				(double) network.getUnits() / inflate.getUnits(),
+				(double) inflate.getCpuNanos() / inflate.getUnits());
+		Cost previous = history.get(encoding);
+		history.put(encoding, previous == null ? measured : new Cost(
+				(previous.ratio + measured.ratio) / 2,
+				(previous.decodeNanos + measured.decodeNanos) / 2));
+
+		if (!resumed && network.getBusyNanos() > 0) {
+			double measuredBandwidth = network.getUnits() * 1e9 / network.getBusyNanos();
+			bandwidth = bandwidth <= 0 ? measuredBandwidth : (bandwidth + measuredBandwidth) / 2;
+		}
+	}
+
+	/**
+	 * Writes the history of previous downloads to the given file.
+	 *
+	 * @param file file in which the history will be stored
+	 * @throws IOException if there is an IOException while writing the history
+	 */
+	public synchronized void write(File file) throws IOException {
+		try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))) ) {
+			out.writeInt(MAGIC);
+			out.writeDouble(bandwidth);
+			out.writeInt(history.size());
+			for (Map.Entry<String, Cost> entry: history.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeDouble(entry.getValue().ratio);
+				out.writeDouble(entry.getValue().decodeNanos);
+			}
+		}
+	}
+
+	/**
+	 * Prints the measured bandwidth, and the estimate for each encoding.
+	 *
+	 * Used to debug.
+	 */
+	public synchronized void print() {
+		System.out.println(String.format("Bandwidth: %.0f bytes/s", bandwidth));
+		for (String encoding: ENCODINGS) {
+			Cost cost = getCost(encoding);
+			System.out.println(String.format("%s: ratio %.3f, decode %.2fns/byte, estimate %.2fns/byte%s",
+					encoding, cost.ratio, cost.decodeNanos, estimate(encoding),
+					history.containsKey(encoding) ? "" : " (assumed)"));
+		}
+	}
+
+	private Cost getCost(String encoding) {
+		Cost cost = history.get(encoding);
+		if (cost != null)
+			return cost;
+		else if (PACK200_GZIP.equals(encoding))
+			return Cost.PACK200_GZIP;
+		else if (GZIP.equals(encoding))
+			return Cost.GZIP;
+		return Cost.IDENTITY;
+	}
+
+	/**
+	 * The cost of an encoding, per byte of the decoded JAR.
+	 */
+	private static class Cost {
+		// Typical costs, used for encodings that have not been measured.
+		static final Cost PACK200_GZIP = new Cost(0.35, 25), GZIP = new Cost(0.95, 2), IDENTITY = new Cost(1, 0);
+
+		/**
+		 * Number of bytes downloaded per byte of the decoded JAR.
+		 */
+		final double ratio;
+
+		/**
+		 * Number of nanoseconds of CPU time spent decoding each byte of the
+		 * decoded JAR. CPU time is used rather than elapsed time, since the
+		 * stage decoding pack200 spends much of its time waiting on the
+		 * thread unpacking it, which in turn waits on the network.
+		 */
+		final double decodeNanos;
+
+		Cost(double ratio, double decodeNanos) {
+			this.ratio = ratio;
+			this.decodeNanos = decodeNanos;
+		}
+	}
+}
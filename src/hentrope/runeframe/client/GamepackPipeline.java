@@ -0,0 +1,701 @@
+package hentrope.runeframe.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import hentrope.runeframe.io.DecompressStream;
+import hentrope.runeframe.io.InterceptInputStream;
+import hentrope.runeframe.util.CertificateVerifier;
+import hentrope.runeframe.util.JarSignatures;
+
+/**
+ * Loads a gamepack from a remote stream using a pipeline of threads, so that
+ * each step of the process can run at the same time as the others.
+ * <p>
+ * The pipeline consists of four stages, connected by bounded queues:
+ * <ol>
+ * <li><b>Network</b> - reads raw chunks from the remote stream.
+ * <li><b>Inflate</b> - decodes the chunks based on their encoding, using
+ *     {@link DecompressStream}.
+ * <li><b>Parse</b> - reads each entry of the JAR, and submits it to be
+ *     verified by {@link JarSignatures}.
+ * <li><b>Verify</b> - waits for each entry to be verified, and adds it to
+ *     the gamepack in the order it was read.
+ * </ol>
+ * The entries themselves are verified on a fork-join pool, which checks
+ * their digests and certificate chains on every core at once.
+ * <p>
+ * The gamepack can either be returned once it has completely loaded, using
+ * {@link #load(InputStream, String)}, or as soon as the pipeline has
+ * started, using {@link #start(InputStream, String)}. In the latter case,
+ * classes can be defined from the gamepack while the rest of it is still
+ * being downloaded.
+ * <p>
+ * Each stage keeps counters of how much data it has processed, and how long
+ * it has spent waiting on its neighbors, which can be obtained using
+ * {@link #getStages()} once the gamepack has loaded.
+ *
+ * @author hentrope
+ * @see GamepackPipeline#load(InputStream, String)
+ * @see GamepackPipeline#start(InputStream, String)
+ */
+public class GamepackPipeline {
+	public static final int CHUNK_SIZE = 65536, QUEUE_CAPACITY = 16;
+	private static final long POLL_MILLIS = 100;
+
+	private final CertificateVerifier verifier;
+	private final File copy;
+	private final ForkJoinPool pool;
+	private final Stage network = new Stage("Network", "bytes");
+	private final Stage inflate = new Stage("Inflate", "bytes");
+	private final Stage parse = new Stage("Parse", "bytes");
+	private final Stage verify = new Stage("Verify", "entries");
+	private final Handoff<ByteBuffer> raw = new Handoff<ByteBuffer>();
+	private final Handoff<ByteBuffer> decoded = new Handoff<ByteBuffer>();
+	private final Handoff<Pending> entries = new Handoff<Pending>();
+	private volatile InterceptInputStream intercept = null;
+	private volatile Throwable failure = null;
+	private String encoding = null;
+	private Thread parseThread, verifyThread;
+
+	/**
+	 * @param verifier CertificateVerifier instance used to verify the JAR's contents. If null, the gamepack will not be verified
+	 * @param copy temporary file to which a copy of the decoded JAR will be written, or null if no copy should be kept
+	 */
+	public GamepackPipeline(CertificateVerifier verifier, File copy) {
+		this(verifier, copy, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param verifier CertificateVerifier instance used to verify the JAR's contents. If null, the gamepack will not be verified
+	 * @param copy temporary file to which a copy of the decoded JAR will be written, or null if no copy should be kept
+	 * @param pool the pool on which entries are verified
+	 */
+	public GamepackPipeline(CertificateVerifier verifier, File copy, ForkJoinPool pool) {
+		this.verifier = verifier;
+		this.copy = copy;
+		this.pool = pool;
+	}
+
+	/**
+	 * Loads a gamepack from the given stream, returning the gamepack data in a
+	 * new ClientGamepack instance.
+	 * <p>
+	 * If any stage fails, the remaining stages will be stopped, and the
+	 * exception thrown by the first stage to fail will be rethrown.
+	 *
+	 * @param stream stream from which to load the gamepack
+	 * @param encoding encoding of the given stream, as accepted by {@link DecompressStream}
+	 * @return an instance of ClientGamepack
+	 * @throws GeneralSecurityException if there is a GeneralSecurityException while attempting to validate the gamepack
+	 * @throws IOException if there is an IOException while attempting to load the gamepack
+	 * @throws SecurityException if there is a SecurityException while attempting to validate the gamepack
+	 */
+	public ClientGamepack load(InputStream stream, String encoding)
+			throws GeneralSecurityException, IOException, SecurityException {
+		ClientGamepack gamepack = start(stream, encoding);
+		finish();
+		return gamepack;
+	}
+
+	/**
+	 * Loads and verifies a gamepack from the given stream, without keeping
+	 * its entries in memory. Each entry is dropped as soon as it has been
+	 * verified, so the only complete copy of the gamepack is the one
+	 * written to disk, which can be moved into place using
+	 * {@link #commit(File)}.
+	 *
+	 * @param stream stream from which to load the gamepack
+	 * @param encoding encoding of the given stream, as accepted by {@link DecompressStream}
+	 * @throws GeneralSecurityException if there is a GeneralSecurityException while attempting to validate the gamepack
+	 * @throws IOException if there is an IOException while attempting to load the gamepack
+	 * @throws SecurityException if there is a SecurityException while attempting to validate the gamepack
+	 */
+	public void verify(InputStream stream, String encoding)
+			throws GeneralSecurityException, IOException, SecurityException {
+		start(stream, encoding, false);
+		finish();
+	}
+
+	/**
+	 * Starts loading a gamepack from the given stream on background threads,
+	 * and returns the gamepack immediately.
+	 * <p>
+	 * Each entry is added to the gamepack as soon as it has been verified,
+	 * so classes can be defined from it while the rest of the JAR is still
+	 * loading. A class that has not arrived yet is waited for by
+	 * {@link ClientGamepack#remove(String)}. If the pipeline fails, anything
+	 * waiting for a class will fail as well.
+	 * <p>
+	 * {@link #finish()} must be called to wait for the pipeline to complete,
+	 * and to find out whether it succeeded.
+	 *
+	 * @param stream stream from which to load the gamepack
+	 * @param encoding encoding of the given stream, as accepted by {@link DecompressStream}
+	 * @return an instance of ClientGamepack, which will be empty until the first entry is verified
+	 */
+	public ClientGamepack start(final InputStream stream, final String encoding) {
+		return start(stream, encoding, true);
+	}
+
+	private ClientGamepack start(final InputStream stream, final String encoding, final boolean retain) {
+		this.encoding = encoding;
+		final ClientGamepack gamepack = new ClientGamepack(null);
+		gamepack.begin();
+
+		startStage(network, null, raw, new StageTask() {
+			@Override
+			public void run() throws Exception {
+				copyChunks(stream, raw, network);
+			}
+		});
+
+		startStage(inflate, raw, decoded, new StageTask() {
+			@Override
+			public void run() throws Exception {
+				try ( InputStream in = DecompressStream.getInputStream(new ChunkInputStream(raw, inflate), encoding) ) {
+					copyChunks(in, decoded, inflate);
+				}
+			}
+		});
+
+		parseThread = startStage(parse, decoded, entries, new StageTask() {
+			@Override
+			public void run() throws Exception {
+				parseEntries(gamepack);
+			}
+		});
+
+		verifyThread = startStage(verify, entries, null, new StageTask() {
+			@Override
+			public void run() throws Exception {
+				try {
+					Pending file;
+					while ((file = entries.take(verify)) != null) {
+						Certificate[] certificates = file.getCertificates();
+						if (retain)
+							gamepack.add(new ClientGamepack.Entry(file.entry, file.data, certificates));
+						verify.record(1);
+					}
+					gamepack.finish(null);
+				} catch (Throwable t) {
+					gamepack.finish(t);
+					throw t;
+				}
+			}
+		});
+
+		return gamepack;
+	}
+
+	/**
+	 * Waits for a pipeline started by {@link #start(InputStream, String)} to
+	 * complete.
+	 * <p>
+	 * If any stage fails, the remaining stages will be stopped, and the
+	 * exception thrown by the first stage to fail will be rethrown.
+	 *
+	 * @throws GeneralSecurityException if there is a GeneralSecurityException while attempting to validate the gamepack
+	 * @throws IOException if there is an IOException while attempting to load the gamepack
+	 * @throws SecurityException if there is a SecurityException while attempting to validate the gamepack
+	 */
+	public void finish() throws GeneralSecurityException, IOException, SecurityException {
+		boolean success = false;
+		try {
+			join(parseThread);
+			join(verifyThread);
+			rethrow(failure);
+			success = true;
+		} finally {
+			if (!success) {
+				entries.close();
+				decoded.close();
+				raw.close();
+				if (intercept != null)
+					intercept.discard();
+			}
+		}
+	}
+
+	/**
+	 * Reads each entry of the JAR, and submits it to be verified.
+	 */
+	private void parseEntries(ClientGamepack gamepack) throws IOException {
+		InputStream in = new ChunkInputStream(decoded, parse);
+		if (copy != null)
+			in = intercept = new InterceptInputStream(in, copy);
+
+		try (	ZipInputStream zip = new ZipInputStream(in);
+				ByteArrayOutputStream out = new ByteArrayOutputStream(ClientGamepack.BYTESTREAM_SIZE) ) {
+			byte[] buff = new byte[ClientGamepack.BUFFER_SIZE];
+
+			// As with JarInputStream, the manifest must be the first entry, or follow META-INF/.
+			ZipEntry entry = zip.getNextEntry();
+			if (entry != null && entry.getName().equalsIgnoreCase("META-INF/"))
+				entry = zip.getNextEntry();
+			byte[] manifestData = null;
+			if (entry != null && entry.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+				manifestData = readEntry(zip, buff, out);
+				gamepack.setManifest(new Manifest(new ByteArrayInputStream(manifestData)));
+				entry = zip.getNextEntry();
+			}
+
+			final JarSignatures signatures = verifier != null ? new JarSignatures(manifestData, pool) : null;
+
+			for (; entry != null; entry = zip.getNextEntry()) {
+				String name = entry.getName();
+				if (entry.isDirectory()) {
+					while (zip.read(buff, 0, buff.length) > 0);
+				} else if (ClientGamepack.isUnverifiable(name)) {
+					byte[] data = readEntry(zip, buff, out);
+					if (signatures != null)
+						signatures.addSignatureFile(name, data);
+				} else {
+					byte[] data = readEntry(zip, buff, out);
+					parse.record(data.length);
+
+					entries.put(new Pending(new JarEntry(entry), data,
+							signatures != null ? signatures.submit(name, data, verifier) : null), parse);
+				}
+			}
+
+			while (in.read(buff) > 0);
+
+			entries.finish(parse);
+		}
+	}
+
+	/**
+	 * Moves the copy of the decoded JAR into place once the gamepack has
+	 * loaded, then releases the stream that wrote it, along with the last
+	 * chunk of data it read.
+	 *
+	 * @param target the location to which the copy will be moved
+	 * @return the SHA-256 digest of the copy
+	 * @throws IOException if no copy was kept, or if it cannot be moved
+	 * @see InterceptInputStream#commit(File)
+	 */
+	public byte[] commit(File target) throws IOException {
+		InterceptInputStream intercept = this.intercept;
+		if (intercept == null)
+			throw new IOException("No copy of the gamepack was kept.");
+
+		this.intercept = null;
+		return intercept.commit(target);
+	}
+
+	/**
+	 * @return the encoding of the stream that was loaded, or null if it was not encoded
+	 */
+	public String getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Returns the counters kept by each stage of the pipeline, in order.
+	 *
+	 * @return a list of all stages
+	 */
+	public List<Stage> getStages() {
+		return Arrays.asList(network, inflate, parse, verify);
+	}
+
+	/**
+	 * Prints the encoding of the stream, and the counters kept by each stage
+	 * of the pipeline.
+	 *
+	 * Used to debug.
+	 */
+	public void print() {
+		System.out.println("Encoding: " + EncodingPolicy.normalize(encoding));
+		for (Stage stage: getStages())
+			System.out.println(stage);
+	}
+
+	private static byte[] readEntry(InputStream in, byte[] buff, ByteArrayOutputStream out) throws IOException {
+		int bytesRead;
+		while ((bytesRead = in.read(buff, 0, buff.length)) > 0)
+			out.write(buff, 0, bytesRead);
+
+		byte[] data = out.toByteArray();
+		out.reset();
+		return data;
+	}
+
+	private static void copyChunks(InputStream in, Handoff<ByteBuffer> out, Stage stage) throws IOException {
+		while (true) {
+			byte[] chunk = new byte[CHUNK_SIZE];
+			int bytesRead = in.read(chunk, 0, chunk.length);
+			if (bytesRead < 0)
+				break;
+
+			stage.record(bytesRead);
+			if (bytesRead > 0)
+				out.put(ByteBuffer.wrap(chunk, 0, bytesRead), stage);
+		}
+		out.finish(stage);
+	}
+
+	private Thread startStage(final Stage stage, final Handoff<?> input, final Handoff<?> output, final StageTask task) {
+		Thread thread = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				stage.begin();
+				try {
+					task.run();
+				} catch (Throwable t) {
+					// The first stage to fail causes its neighbors to fail, so its exception is the one reported.
+					synchronized (GamepackPipeline.this) {
+						if (failure == null)
+							failure = t;
+					}
+					if (input != null)
+						input.close();
+					if (output != null)
+						output.fail(t);
+				} finally {
+					stage.end();
+				}
+			}
+		}, "Gamepack " + stage.name );
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private static void rethrow(Throwable t) throws GeneralSecurityException, IOException {
+		if (t instanceof GeneralSecurityException)
+			throw (GeneralSecurityException) t;
+		else if (t instanceof IOException)
+			throw (IOException) t;
+		else if (t instanceof RuntimeException)
+			throw (RuntimeException) t;
+		else if (t instanceof Error)
+			throw (Error) t;
+		else if (t != null)
+			throw new IOException(t);
+	}
+
+	private static void join(Thread thread) throws IOException {
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private static interface StageTask {
+		void run() throws Exception;
+	}
+
+	/**
+	 * An entry that has been read, and is waiting to be verified.
+	 */
+	private static class Pending {
+		final JarEntry entry;
+		final byte[] data;
+		final Future<Certificate[]> certificates;
+
+		Pending(JarEntry entry, byte[] data, Future<Certificate[]> certificates) {
+			this.entry = entry;
+			this.data = data;
+			this.certificates = certificates;
+		}
+
+		/**
+		 * Waits for the entry to be verified, rethrowing any exception thrown
+		 * while verifying it.
+		 */
+		Certificate[] getCertificates() throws Exception {
+			if (certificates == null)
+				return null;
+
+			try {
+				return certificates.get();
+			} catch (ExecutionException e) {
+				// A fork-join task wraps checked exceptions, and copies exceptions thrown on other threads.
+				Throwable cause = e.getCause();
+				while (cause.getCause() != null && (cause.getClass() == RuntimeException.class
+						|| cause.getClass() == cause.getCause().getClass()))
+					cause = cause.getCause();
+
+				if (cause instanceof Exception)
+					throw (Exception) cause;
+				else if (cause instanceof Error)
+					throw (Error) cause;
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Counters describing the work performed by a single stage of the pipeline.
+	 * <p>
+	 * A stage's input may be read by a thread other than its own, such as the
+	 * thread that unpacks pack200, so its counters are updated atomically.
+	 * <p>
+	 * The CPU time of every thread that has worked for the stage is sampled
+	 * each time the stage records progress. Unlike the busy time, it does not
+	 * include time spent blocked on a helper thread.
+	 */
+	public static class Stage {
+		private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+		public final String name, unit;
+		private final AtomicLong units = new AtomicLong(), waitNanos = new AtomicLong();
+		private final Map<Long, Long> cpuNanos = new ConcurrentHashMap<Long, Long>();
+		private volatile long startNanos = 0, endNanos = 0;
+
+		Stage(String name, String unit) {
+			this.name = name;
+			this.unit = unit;
+		}
+
+		/**
+		 * @return the number of units (bytes or entries) processed by this stage
+		 */
+		public long getUnits() {
+			return units.get();
+		}
+
+		/**
+		 * @return the number of nanoseconds this stage spent working, excluding time spent waiting
+		 */
+		public long getBusyNanos() {
+			long end = endNanos != 0 ? endNanos : System.nanoTime();
+			return startNanos != 0 ? Math.max(0, end - startNanos - waitNanos.get()) : 0;
+		}
+
+		/**
+		 * @return the CPU time used by the threads working for this stage, or the busy time if it cannot be measured
+		 */
+		public long getCpuNanos() {
+			if (!isCpuTimeEnabled())
+				return getBusyNanos();
+
+			long total = 0;
+			for (long nanos: cpuNanos.values())
+				total += nanos;
+			return total;
+		}
+
+		/**
+		 * @return the number of nanoseconds this stage spent waiting on its neighbors
+		 */
+		public long getWaitNanos() {
+			return waitNanos.get();
+		}
+
+		/**
+		 * @return the number of units processed per second of work
+		 */
+		public double getThroughput() {
+			long busy = getBusyNanos();
+			return busy > 0 ? units.get() * 1e9 / busy : 0;
+		}
+
+		void begin() {
+			startNanos = System.nanoTime();
+			attach();
+		}
+
+		void end() {
+			sampleCpu();
+			endNanos = System.nanoTime();
+		}
+
+		void record(long units) {
+			this.units.addAndGet(units);
+			sampleCpu();
+		}
+
+		void recordWait(long nanos) {
+			this.waitNanos.addAndGet(nanos);
+			attach();
+		}
+
+		/**
+		 * Adds the current thread to those sampled by this stage. Each stage
+		 * and helper thread is started for a single gamepack, so all of its
+		 * CPU time is attributed to the stage.
+		 */
+		private void attach() {
+			if (!cpuNanos.containsKey(Thread.currentThread().getId()))
+				cpuNanos.putIfAbsent(Thread.currentThread().getId(), 0L);
+		}
+
+		/**
+		 * Only called by the stage's own thread. A thread that has already
+		 * exited keeps its last sample.
+		 */
+		private void sampleCpu() {
+			if (!isCpuTimeEnabled())
+				return;
+
+			for (Map.Entry<Long, Long> entry: cpuNanos.entrySet()) {
+				long nanos = THREADS.getThreadCpuTime(entry.getKey());
+				if (nanos > entry.getValue())
+					entry.setValue(nanos);
+			}
+		}
+
+		private static boolean isCpuTimeEnabled() {
+			return THREADS.isThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d %s in %dms (%.1f/s), %dms waiting, %dms CPU",
+					name, getUnits(), unit, getBusyNanos() / 1000000, getThroughput(), getWaitNanos() / 1000000,
+					getCpuNanos() / 1000000);
+		}
+	}
+
+	/**
+	 * A bounded queue used to hand items from one stage to the next. Either
+	 * side may close the queue, causing the other side to stop.
+	 */
+	private static class Handoff<T> {
+		private static final Object END = new Object();
+
+		private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_CAPACITY);
+		private volatile boolean closed = false;
+		private volatile Throwable failure = null;
+
+		void put(T item, Stage stage) throws IOException {
+			offer(item, stage);
+		}
+
+		void finish(Stage stage) throws IOException {
+			offer(END, stage);
+		}
+
+		void fail(Throwable t) {
+			failure = t;
+			queue.clear();
+			queue.offer(END);
+		}
+
+		void close() {
+			closed = true;
+			queue.clear();
+		}
+
+		@SuppressWarnings("unchecked")
+		T take(Stage stage) throws IOException {
+			long start = System.nanoTime();
+			try {
+				Object item;
+				while ((item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null)
+					if (closed)
+						throw new IOException("Pipeline closed.");
+
+				if (item == END) {
+					queue.offer(END);
+					if (failure != null)
+						throw new IOException("Previous stage failed.", failure);
+					return null;
+				}
+				return (T) item;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} finally {
+				stage.recordWait(System.nanoTime() - start);
+			}
+		}
+
+		private void offer(Object item, Stage stage) throws IOException {
+			long start = System.nanoTime();
+			try {
+				while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS))
+					if (closed)
+						throw new IOException("Pipeline closed.");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} finally {
+				stage.recordWait(System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * An InputStream that reads the chunks handed to it by the previous stage.
+	 */
+	private static class ChunkInputStream extends InputStream {
+		private final Handoff<ByteBuffer> handoff;
+		private final Stage stage;
+		private ByteBuffer chunk = ByteBuffer.allocate(0);
+		private boolean eof = false;
+
+		ChunkInputStream(Handoff<ByteBuffer> handoff, Stage stage) {
+			this.handoff = handoff;
+			this.stage = stage;
+		}
+
+		private boolean fill() throws IOException {
+			while (!eof && !chunk.hasRemaining()) {
+				ByteBuffer next = handoff.take(stage);
+				if (next == null)
+					eof = true;
+				else
+					chunk = next;
+			}
+			return !eof;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return fill() ? chunk.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] data, int offset, int length) throws IOException {
+			if (length == 0)
+				return 0;
+			if (!fill())
+				return -1;
+
+			int count = Math.min(length, chunk.remaining());
+			chunk.get(data, offset, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return chunk.remaining();
+		}
+
+		@Override
+		public void close() {
+			handoff.close();
+		}
+	}
+}
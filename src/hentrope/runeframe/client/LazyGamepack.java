@@ -0,0 +1,116 @@
+package hentrope.runeframe.client;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * A {@link ClientGamepack} backed by random access into a JAR file, which
+ * only inflates an entry once it is requested.
+ *
+ * @author hentrope
+ * @see ClientGamepack#fromFile(java.io.File)
+ */
+class LazyGamepack extends ClientGamepack {
+	private final JarFile jar;
+
+	LazyGamepack(JarFile jar) throws IOException {
+		super(jar.getManifest());
+		this.jar = jar;
+	}
+
+	private byte[] read(JarEntry entry) throws IOException {
+		return read(jar, entry);
+	}
+
+	@Override
+	public Collection<String> getClassNames() {
+		List<String> names = new ArrayList<String>();
+		Enumeration<JarEntry> entries = jar.entries();
+		while (entries.hasMoreElements()) {
+			String name = entries.nextElement().getName();
+			if (name.endsWith(".class"))
+				names.add(ClassSource.formatClassName(name));
+		}
+		return names;
+	}
+
+	@Override
+	public boolean contains(String name) {
+		return jar.getJarEntry(name.replace('.', '/') + ".class") != null;
+	}
+
+	@Override
+	Entry getClassEntry(String name) throws IOException {
+		JarEntry entry = jar.getJarEntry(name.replace('.', '/') + ".class");
+
+		if (entry != null)
+			return new Entry(entry, read(entry));
+		else
+			return null;
+	}
+
+	@Override
+	public ClassSource.Data remove(String name) throws IOException {
+		JarEntry entry = jar.getJarEntry(name.replace('.', '/') + ".class");
+
+		if (entry != null)
+			return new ClassSource.Data(ByteBuffer.wrap(read(entry)), null);
+		else
+			return null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		jar.close();
+	}
+
+	/**
+	 * Returns an iterator that inflates each file in the JAR as it is reached.
+	 * An {@link UncheckedIOException} will be thrown if a file cannot be read.
+	 */
+	@Override
+	public Iterator<Entry> iterator() {
+		final Enumeration<JarEntry> entries = jar.entries();
+
+		return new Iterator<Entry>() {
+			private JarEntry next = advance();
+
+			private JarEntry advance() {
+				while (entries.hasMoreElements()) {
+					JarEntry entry = entries.nextElement();
+					if (!entry.isDirectory() && !isUnverifiable(entry.getName()))
+						return entry;
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Entry next() {
+				if (next == null)
+					throw new NoSuchElementException();
+
+				JarEntry entry = next;
+				next = advance();
+				try {
+					return new Entry(entry, read(entry));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+	}
+}
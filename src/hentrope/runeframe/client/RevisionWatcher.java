@@ -0,0 +1,201 @@
+package hentrope.runeframe.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import hentrope.runeframe.Preferences;
+import hentrope.runeframe.io.ContentDigest;
+import hentrope.runeframe.io.FileAtlas;
+import hentrope.runeframe.io.ResumableDownload;
+import hentrope.runeframe.util.CertificateVerifier;
+
+/**
+ * Periodically checks the client configuration while the game is running,
+ * and downloads any new gamepack ahead of the next startup.
+ * <p>
+ * When the configuration refers to a gamepack other than the one that is
+ * running, the new gamepack is downloaded and verified in the same way as
+ * at startup, then stored in a staging slot beside the cached JAR. The next
+ * startup that asks for that gamepack moves it into the cache using
+ * {@link #promote(FileAtlas, int)}, rather than downloading it.
+ * <p>
+ * The check must not disturb the game, or the next startup. The
+ * configuration is requested from the same worlds as at startup, but is
+ * not stored in the cache, and the download has a partial file of its own.
+ * The gamepack is written to disk as it is read rather than kept in memory,
+ * and its entries are verified one at a time at low priority.
+ *
+ * @author hentrope
+ * @see RevisionWatcher#start(FileAtlas, Preferences, ClientConfig, CertificateVerifier)
+ */
+public class RevisionWatcher implements Runnable {
+	public static final long INTERVAL = 15 * 60 * 1000;
+
+	/**
+	 * Starts a low-priority daemon thread that checks for a new gamepack
+	 * every {@link #INTERVAL} milliseconds.
+	 *
+	 * @param atlas An instance defining the location of all relevant files and directories
+	 * @param pref An instance which contains all of the user's preferences
+	 * @param config the client configuration used to load the running gamepack
+	 * @param verifier An instance used to verify downloaded gamepacks
+	 * @return the thread that was started
+	 */
+	public static Thread start(FileAtlas atlas, Preferences pref, ClientConfig config, CertificateVerifier verifier) {
+		Thread thread = new Thread(new RevisionWatcher(atlas, pref, config.get(ClientConfig.Key.DOWNLOAD), verifier),
+				"Revision Watcher");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Moves the staged gamepack into the cache if it has the given ID. Its
+	 * digest is recorded along with it, so that the cached JAR is checked
+	 * when it is loaded.
+	 * <p>
+	 * The old validator is removed before the JAR is moved into place, and
+	 * the JAR is moved before its ID is updated, so that an interrupted move
+	 * will be caught by the digest check.
+	 *
+	 * @param atlas An instance defining the location of all relevant files and directories
+	 * @param id the ID of the gamepack, as given by the client configuration
+	 * @return true if the staged gamepack was moved into the cache
+	 */
+	public static boolean promote(FileAtlas atlas, int id) {
+		byte[] digest = new byte[ContentDigest.LENGTH];
+		try ( RandomAccessFile idFile = new RandomAccessFile(atlas.stagingID, "r") ) {
+			if (idFile.readInt() != id)
+				return false;
+			idFile.readFully(digest);
+		} catch (IOException e) {
+			return false;
+		}
+
+		try {
+			atlas.cacheValidator.delete();
+			move(atlas.stagingJar, atlas.cacheJar);
+			writeID(atlas.cacheID, id, digest);
+			if (atlas.stagingValidator.isFile())
+				move(atlas.stagingValidator, atlas.cacheValidator);
+			atlas.stagingID.delete();
+			return true;
+		} catch (IOException e) {
+			System.err.println("Unable to move staged gamepack into the cache.");
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+
+
+	private final FileAtlas atlas;
+	private final Preferences pref;
+	private final String runningID;
+	private final CertificateVerifier verifier;
+	private final ForkJoinPool pool;
+
+	private RevisionWatcher(FileAtlas atlas, Preferences pref, String runningID, CertificateVerifier verifier) {
+		this.atlas = atlas;
+		this.pref = pref;
+		this.runningID = runningID;
+		this.verifier = verifier;
+
+		// A single low-priority thread, rather than the common pool shared with the game.
+		this.pool = new ForkJoinPool(1, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			@Override
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName("Revision Verifier");
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		}, null, false);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			try {
+				check();
+			} catch (IOException | GeneralSecurityException | SecurityException | NumberFormatException e) {
+				System.err.println("Unable to stage the next gamepack.");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Requests the client configuration, and stages the gamepack it refers
+	 * to if it is neither running nor already staged.
+	 */
+	private void check() throws IOException, GeneralSecurityException {
+		ClientConfig config = ClientConfig.fromWorlds(Client.getHomeWorlds(pref, atlas, false), null, Client.CONFIG_TIMEOUT);
+		String id = config.get(ClientConfig.Key.DOWNLOAD);
+		if (id == null || id.equals(runningID) || Integer.parseInt(id) == getStagedID())
+			return;
+
+		URL url = new URL(config.get("codebase") + config.get("initial_jar"));
+		EncodingPolicy policy = EncodingPolicy.read(atlas.encodingHistory);
+		String encoding = ResumableDownload.getPendingEncoding(url, atlas.stagingPartial);
+		if (encoding == null)
+			encoding = policy.choose();
+
+		File copy = File.createTempFile("gamepack", ".tmp", atlas.dataDir);
+		try ( ResumableDownload download = ResumableDownload.open(url, encoding, atlas.stagingPartial, 1, null) ) {
+			GamepackPipeline pipeline = new GamepackPipeline(verifier, copy, pool);
+			pipeline.verify(download.getInputStream(), download.getContentEncoding());
+
+			// Remove the old ID first, so that a partly staged JAR is never promoted.
+			atlas.stagingID.delete();
+			atlas.stagingValidator.delete();
+			byte[] digest = pipeline.commit(atlas.stagingJar);
+			if (download.getValidator() != null)
+				download.getValidator().write(atlas.stagingValidator);
+			writeID(atlas.stagingID, Integer.parseInt(id), digest);
+		} finally {
+			copy.delete();
+		}
+	}
+
+	/**
+	 * @return the ID of the staged gamepack, or -1 if none is staged
+	 */
+	private int getStagedID() {
+		try ( RandomAccessFile idFile = new RandomAccessFile(atlas.stagingID, "r") ) {
+			return idFile.readInt();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	private static void writeID(File file, int id, byte[] digest) throws IOException {
+		try ( RandomAccessFile idFile = new RandomAccessFile(file, "rwd") ) {
+			idFile.writeInt(id);
+			idFile.write(digest);
+		}
+	}
+
+	private static void move(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package hentrope.runeframe.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how long it takes to open a TCP connection to each of a set of
+ * worlds, keeping a history of the results so that the world with the lowest
+ * latency can be used as the home world.
+ * <p>
+ * Since probing takes time, the results of a probe are intended to be used
+ * by the next startup. Each world's latency is smoothed across probes, so
+ * that a single slow connection does not rule out a world.
+ *
+ * @author hentrope
+ * @see WorldProbe#read(File)
+ * @see WorldProbe#start(int[], File)
+ */
+public class WorldProbe {
+	private static final int MAGIC = 0x52465750; // "RFWP"
+	public static final int PORT = 80, TIMEOUT = 2000, ATTEMPTS = 2;
+
+	/**
+	 * Worlds that are probed when no other candidates are given.
+	 */
+	public static final int[] CANDIDATES = {
+			301, 302, 303, 304, 305, 306, 307, 308, 309, 310,
+			311, 312, 313, 314, 315, 316, 317, 318, 319, 320 };
+
+	/**
+	 * Reads the history of probe results stored in the given file.
+	 *
+	 * @param file file containing the history
+	 * @return an instance of WorldProbe, which will have no history if the file does not exist or is malformed
+	 */
+	public static WorldProbe read(File file) {
+		WorldProbe probe = new WorldProbe();
+		if (!file.isFile())
+			return probe;
+
+		try ( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))) ) {
+			if (in.readInt() != MAGIC)
+				return probe;
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++)
+				probe.latency.put(in.readInt(), in.readInt());
+		} catch (IOException e) {
+			probe.latency.clear();
+		}
+
+		return probe;
+	}
+
+	/**
+	 * Returns the address used to probe the given world.
+	 *
+	 * @param world the world number, such as 301
+	 * @return an unresolved address, which is resolved by the probe itself
+	 */
+	public static InetSocketAddress getAddress(int world) {
+		return InetSocketAddress.createUnresolved(ClientConfig.getWorldHost(world), PORT);
+	}
+
+
+
+	private final Map<Integer, Integer> latency = new HashMap<Integer, Integer>();
+
+	private WorldProbe() {}
+
+	/**
+	 * Returns the worlds with the lowest recorded latency, fastest first.
+	 * Worlds that could not be reached during their last probe are excluded.
+	 *
+	 * @param count maximum number of worlds to return
+	 * @return an array of world numbers, which is empty if there is no history
+	 */
+	public synchronized int[] getFastestWorlds(int count) {
+		List<Entry<Integer, Integer>> entries = new ArrayList<Entry<Integer, Integer>>();
+		for (Entry<Integer, Integer> entry: latency.entrySet())
+			if (entry.getValue() >= 0)
+				entries.add(entry);
+
+		Collections.sort(entries, new Comparator<Entry<Integer, Integer>>() {
+			@Override
+			public int compare(Entry<Integer, Integer> a, Entry<Integer, Integer> b) {
+				return Integer.compare(a.getValue(), b.getValue());
+			}
+		});
+
+		int[] worlds = new int[Math.min(count, entries.size())];
+		for (int i = 0; i < worlds.length; i++)
+			worlds[i] = entries.get(i).getKey();
+		return worlds;
+	}
+
+	/**
+	 * Probes each of the given addresses at the same time, blocking until
+	 * every probe has either connected or timed out. The fastest of several
+	 * connection attempts is recorded for each world, and combined with the
+	 * world's previous latency.
+	 *
+	 * @param targets the address to be probed for each world
+	 * @param timeout number of milliseconds to wait for each connection
+	 * @throws InterruptedIOException if the thread is interrupted while waiting for the probes
+	 */
+	public void probe(Map<Integer, InetSocketAddress> targets, final int timeout) throws InterruptedIOException {
+		final CountDownLatch done = new CountDownLatch(targets.size());
+
+		for (final Entry<Integer, InetSocketAddress> target: targets.entrySet()) {
+			Thread thread = new Thread( new Runnable() {
+				@Override
+				public void run() {
+					try {
+						update(target.getKey(), measure(target.getValue(), timeout));
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "World Probe " + target.getKey() );
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Starts a low-priority daemon thread that probes the given worlds, then
+	 * writes the updated history to the given file.
+	 *
+	 * @param worlds the worlds to be probed
+	 * @param file file in which the history will be stored
+	 * @return the thread that was started
+	 */
+	public Thread start(final int[] worlds, final File file) {
+		Thread thread = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				Map<Integer, InetSocketAddress> targets = new LinkedHashMap<Integer, InetSocketAddress>();
+				for (int world: worlds)
+					targets.put(world, getAddress(world));
+
+				try {
+					probe(targets, TIMEOUT);
+					write(file);
+				} catch (IOException e) {
+					System.err.println("Unable to save world latency history to disk.");
+					e.printStackTrace();
+				}
+			}
+		}, "World Prober" );
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Writes the history of probe results to the given file.
+	 *
+	 * @param file file in which the history will be stored
+	 * @throws IOException if there is an IOException while writing the history
+	 */
+	public synchronized void write(File file) throws IOException {
+		try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))) ) {
+			out.writeInt(MAGIC);
+			out.writeInt(latency.size());
+			for (Entry<Integer, Integer> entry: latency.entrySet()) {
+				out.writeInt(entry.getKey());
+				out.writeInt(entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Prints the recorded latency of each world, in milliseconds.
+	 *
+	 * Used to debug.
+	 */
+	public synchronized void print() {
+		for (Entry<Integer, Integer> entry: latency.entrySet())
+			System.out.println(entry.getKey() + ": " + (entry.getValue() < 0 ? "unreachable" : entry.getValue() + "ms"));
+	}
+
+	/**
+	 * Records a new measurement for a world. A negative measurement means
+	 * that the world could not be reached.
+	 */
+	private synchronized void update(int world, int measured) {
+		Integer previous = latency.get(world);
+		if (measured < 0 || previous == null || previous < 0)
+			latency.put(world, measured);
+		else
+			latency.put(world, (previous + measured) / 2);
+	}
+
+	/**
+	 * Returns the fastest of several attempts to connect to the given
+	 * address, in milliseconds, or -1 if every attempt failed. The address is
+	 * resolved before timing begins, so that DNS lookups are not measured.
+	 */
+	private static int measure(InetSocketAddress target, int timeout) {
+		InetSocketAddress address = target.isUnresolved()
+				? new InetSocketAddress(target.getHostString(), target.getPort()) : target;
+		if (address.isUnresolved())
+			return -1;
+
+		long best = -1;
+		for (int i = 0; i < ATTEMPTS; i++) {
+			try ( Socket socket = new Socket() ) {
+				long start = System.nanoTime();
+				socket.connect(address, timeout);
+				long elapsed = System.nanoTime() - start;
+
+				if (best < 0 || elapsed < best)
+					best = elapsed;
+			} catch (IOException e) {}
+		}
+
+		return best < 0 ? -1 : (int) Math.max(1, best / 1000000);
+	}
+}
@@ -0,0 +1,99 @@
+package hentrope.runeframe.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Computes the SHA-256 digest of a file on a separate thread, so
+ * that the integrity of cached data can be checked while it is being parsed.
+ *
+ * @author hentrope
+ * @see ContentDigest#start(File)
+ */
+public class ContentDigest {
+	public static final String ALGORITHM = "SHA-256";
+	public static final int LENGTH = 32, BUFFER_SIZE = 65536;
+
+	/**
+	 * Creates a new MessageDigest using the algorithm used for all cached data.
+	 *
+	 * @return a new instance of MessageDigest
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Starts computing the digest of the given file on a separate thread.
+	 *
+	 * @param file file to be digested
+	 * @return a ContentDigest which can be used to check the result
+	 */
+	public static ContentDigest start(final File file) {
+		return new ContentDigest(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				MessageDigest digest = newDigest();
+				ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+				try (	RandomAccessFile raf = new RandomAccessFile(file, "r");
+						FileChannel channel = raf.getChannel() ) {
+					while (channel.read(buffer) >= 0) {
+						buffer.flip();
+						digest.update(buffer);
+						buffer.clear();
+					}
+				}
+
+				return digest.digest();
+			}
+		});
+	}
+
+
+
+	private final FutureTask<byte[]> task;
+
+	private ContentDigest(Callable<byte[]> callable) {
+		task = new FutureTask<byte[]>(callable);
+
+		Thread thread = new Thread(task, "Content Digest");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Waits for the digest to be computed, then compares it to the expected
+	 * digest.
+	 *
+	 * @param expected the digest that the content is expected to have
+	 * @return whether the computed digest is equal to the expected digest
+	 * @throws IOException if there was an IOException while reading the content
+	 */
+	public boolean matches(byte[] expected) throws IOException {
+		try {
+			return MessageDigest.isEqual(task.get(), expected);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+}
@@ -2,8 +2,6 @@ package hentrope.runeframe.io;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Pack200;
@@ -16,6 +14,22 @@ import java.util.zip.GZIPInputStream;
  * @author hentrope
  */
 public class DecompressStream {
+	/**
+	 * Creates and returns an InputStream that will decompress the data within
+	 * a given InputStream, based on its encoding.
+	 * 
+	 * @param in InputStream which contents should be decompressed
+	 * @param encoding Encoding of in
+	 * @return An InputStream that will output the decompressed data
+	 * @throws IOException 
+	 * @throws UnsupportedEncodingException If decompressing the stream is unsupported
+	 * @see DecompressStream#getInputStream(InputStream, String, int)
+	 */
+	public static InputStream getInputStream(final InputStream in, final String encoding)
+			throws IOException, UnsupportedEncodingException {
+		return getInputStream(in, encoding, RingBufferStream.DEFAULT_CAPACITY);
+	}
+
 	/**
 	 * Creates and returns an InputStream that will decompress the data within
 	 * a given InputStream, based on its encoding.
@@ -25,51 +39,61 @@ public class DecompressStream {
 	 * additional InputStreams in order to decompress the data as it arrives.
 	 * This function supports streams encoded with gzip and/or pack200.
 	 * 
+	 * Since pack200 can only be unpacked to an OutputStream, a separate thread
+	 * is started to unpack the stream into a {@link RingBufferStream}. Any
+	 * exception thrown while unpacking will be rethrown by the returned
+	 * stream, and closing the returned stream will stop the thread.
+	 * 
 	 * @param in InputStream which contents should be decompressed
 	 * @param encoding Encoding of in
-	 * @return A
+	 * @param bufferSize Capacity of the buffer between the unpacking thread and the returned stream, in bytes
+	 * @return An InputStream that will output the decompressed data
 	 * @throws IOException 
 	 * @throws UnsupportedEncodingException If decompressing the stream is unsupported
 	 */
-	public static InputStream getInputStream(final InputStream in, final String encoding)
+	public static InputStream getInputStream(final InputStream in, final String encoding, final int bufferSize)
 			throws IOException, UnsupportedEncodingException {
 		// If the stream is not compressed, return the stream
-		if (encoding == null || "".equals(encoding))
+		if (encoding == null || "".equals(encoding) || "identity".equals(encoding))
 			return in;
 
 		// If the stream is compressed with gzip, wrap it in a stream to decompress it.
 		else if ("gzip".equals(encoding))
 			return new GZIPInputStream(in);
 
-		// If the stream is compressed with both pack200 and gzip, then a piped
-		// stream will need to be created using the pack200 unpack function.
+		// If the stream is compressed with both pack200 and gzip, then the
+		// pack200 unpack function will need to write to a ring buffer stream
+		// from a separate thread.
 		else if ("pack200-gzip".equals(encoding)) {
 			final GZIPInputStream gzip = new GZIPInputStream(in);
-			final PipedInputStream pin = new PipedInputStream() {
+			final RingBufferStream rin = new RingBufferStream(bufferSize) {
 				@Override
-				public void close() throws IOException {
+				public synchronized void close() {
 					super.close();
-					gzip.close();
+					try {
+						gzip.close();
+					} catch (IOException e) {}
 				}
 			};
-			final PipedOutputStream pout = new PipedOutputStream(pin);
 
-			new Thread( new Runnable() {
+			Thread thread = new Thread( new Runnable() {
 				public void run() {
+					// The JAR is only closed on success, so that a failure is
+					// never mistaken for the end of the stream. Errors are
+					// passed on as well, or the reader would wait forever.
 					try {
-						try {
-							Pack200.newUnpacker().unpack(gzip, new JarOutputStream(pout));
-						} finally {
-							pout.close();
-						}
-					} catch (IOException e) {
-						if (!"Pipe closed".equals(e.getMessage()))
-							e.printStackTrace();
+						JarOutputStream jar = new JarOutputStream(rin.getOutputStream());
+						Pack200.newUnpacker().unpack(gzip, jar);
+						jar.close();
+					} catch (Throwable t) {
+						rin.fail(t);
 					}
 				}
-			} ).start();
+			}, "Pack200 Unpacker" );
+			thread.setDaemon(true);
+			thread.start();
 
-			return pin;
+			return rin;
 		}
 
 		// If none of the above cases cover the encoding, throw an exception.
@@ -14,7 +14,9 @@ public class FileAtlas {
 	public static final String PREF_FILENAME = "runeframe.pref";
 	
 	public final File userDir, preferences, errors, state;
-	public final File dataDir, cacheJar, cacheID, certificateDir;
+	public final File dataDir, configCache, worldHistory, encodingHistory, certificateDir, trustIndex;
+	public final File cacheJar, cacheID, cacheValidator, cacheStore, cacheProfile, downloadPartial;
+	public final File stagingJar, stagingID, stagingValidator, stagingPartial;
 	public final File screenDir;
 
 	public FileAtlas(Arguments args, Preferences pref) {
@@ -24,9 +26,21 @@ public class FileAtlas {
 		state = new File(userDir, "runeframe.state");
 
 		dataDir = pref.getFile(Preferences.Key.DATA_DIRECTORY);
+		configCache = new File(dataDir, "jav_config.dat");
+		worldHistory = new File(dataDir, "worlds.dat");
+		encodingHistory = new File(dataDir, "encoding.dat");
 		cacheJar = new File(dataDir, "gamepack.jar");
 		cacheID = new File(dataDir, "gamepack.dat");
+		cacheValidator = new File(dataDir, "gamepack.etag");
+		cacheStore = new File(dataDir, "store/");
+		cacheProfile = new File(dataDir, "gamepack.order");
+		downloadPartial = new File(dataDir, "gamepack.part");
+		stagingJar = new File(dataDir, "gamepack.next.jar");
+		stagingID = new File(dataDir, "gamepack.next.dat");
+		stagingValidator = new File(dataDir, "gamepack.next.etag");
+		stagingPartial = new File(dataDir, "gamepack.next.part");
 		certificateDir = new File(dataDir, "certificates/");
+		trustIndex = new File(dataDir, "certificates.dat");
 		
 		screenDir = pref.getFile(Preferences.Key.SCREENSHOT_DIRECTORY);
 	}
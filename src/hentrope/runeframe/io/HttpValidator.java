@@ -0,0 +1,141 @@
+package hentrope.runeframe.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * The ETag and Last-Modified headers that a server returned for a resource,
+ * which can be sent back in a conditional request so that the server only
+ * sends the resource again if it has changed.
+ *
+ * @author hentrope
+ * @see HttpValidator#fromConnection(URL, URLConnection)
+ */
+public class HttpValidator {
+	/**
+	 * Returns the validator sent by the server in response to a request.
+	 * The validator is associated with the URL that was requested, rather
+	 * than the URL of any redirect that was followed.
+	 *
+	 * @param url the URL that was requested
+	 * @param connection a connection whose response headers have been received
+	 * @return an instance of HttpValidator, or null if the response has neither an ETag nor a Last-Modified date
+	 */
+	public static HttpValidator fromConnection(URL url, URLConnection connection) {
+		String etag = connection.getHeaderField("etag");
+		String lastModified = connection.getHeaderField("last-modified");
+		if (etag == null && lastModified == null)
+			return null;
+		return new HttpValidator(url.toString(), etag, lastModified);
+	}
+
+	/**
+	 * Reads a validator that was written using {@link #write(DataOutput)}.
+	 *
+	 * @param in DataInput from which to read the validator
+	 * @return an instance of HttpValidator
+	 * @throws IOException if there is an IOException while reading the validator
+	 */
+	public static HttpValidator read(DataInput in) throws IOException {
+		String url = in.readUTF(), etag = in.readUTF(), lastModified = in.readUTF();
+		return new HttpValidator(url, etag.isEmpty() ? null : etag, lastModified.isEmpty() ? null : lastModified);
+	}
+
+	/**
+	 * Reads a validator that was written using {@link #write(File)}.
+	 *
+	 * @param file file containing the validator
+	 * @return an instance of HttpValidator, or null if the file does not exist or cannot be read
+	 */
+	public static HttpValidator read(File file) {
+		try ( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))) ) {
+			return read(in);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Checks whether the server responded to a conditional request by
+	 * stating that the resource has not been modified.
+	 *
+	 * @param connection a connection whose response headers have been received
+	 * @return true if the response has a 304 status code
+	 * @throws IOException if there is an IOException while reading the response
+	 */
+	public static boolean isNotModified(URLConnection connection) throws IOException {
+		return connection instanceof HttpURLConnection
+				&& ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+	}
+
+
+
+	private final String url, etag, lastModified;
+
+	private HttpValidator(String url, String etag, String lastModified) {
+		this.url = url;
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * @param url URL of a resource
+	 * @return whether this validator was returned for the given URL
+	 */
+	public boolean appliesTo(URL url) {
+		return this.url.equals(url.toString());
+	}
+
+	/**
+	 * Makes a request conditional by adding If-None-Match and
+	 * If-Modified-Since headers, as long as this validator applies to the
+	 * URL being requested.
+	 *
+	 * @param connection a connection that has not yet been connected
+	 */
+	public void addTo(URLConnection connection) {
+		if (!appliesTo(connection.getURL()))
+			return;
+
+		if (etag != null)
+			connection.addRequestProperty("if-none-match", etag);
+		if (lastModified != null)
+			connection.addRequestProperty("if-modified-since", lastModified);
+	}
+
+	/**
+	 * Writes this validator so that it can be read using
+	 * {@link #read(DataInput)}.
+	 *
+	 * @param out DataOutput to which the validator will be written
+	 * @throws IOException if there is an IOException while writing the validator
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeUTF(url);
+		out.writeUTF(etag != null ? etag : "");
+		out.writeUTF(lastModified != null ? lastModified : "");
+	}
+
+	/**
+	 * Writes this validator to the given file.
+	 *
+	 * @param file file in which the validator will be stored
+	 * @throws IOException if there is an IOException while writing the validator
+	 */
+	public void write(File file) throws IOException {
+		try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))) ) {
+			write(out);
+		}
+	}
+}
@@ -1,37 +1,98 @@
 package hentrope.runeframe.io;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 
 /**
- * A variant of {@link FilterInputStream} that stores a copy of all data
- * that is read from the underlying InputStream.
+ * A variant of {@link FilterInputStream} that writes a copy of all data
+ * that is read from the underlying InputStream to a temporary file.
  * <p>
- * Once the underlying stream has been read completely, a byte array of all
- * retrieved data can be obtained using the {@link InterceptInputStream#toByteArray()} method.
+ * The copy is written through a FileChannel as the data arrives, rather
+ * than being held in memory. Once the underlying stream has been read
+ * completely, the temporary file can be moved into place using the
+ * {@link InterceptInputStream#commit(File)} method, which also returns the
+ * SHA-256 digest of the copied data.
  * <p>
  * Based on {@link javax.swing.ProgressMonitorInputStream}.
- * 
+ *
  * @author hentrope
  */
 public class InterceptInputStream extends FilterInputStream {
-	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	private final File file;
+	private final FileChannel channel;
+	private final MessageDigest digest = ContentDigest.newDigest();
 
-	public InterceptInputStream(InputStream in) {
+	/**
+	 * @param in the underlying InputStream
+	 * @param file the temporary file to which the copy will be written
+	 * @throws IOException if the temporary file cannot be opened
+	 */
+	public InterceptInputStream(InputStream in, File file) throws IOException {
 		super(in);
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
 	}
 
-	public byte[] toByteArray() {
-		return out.toByteArray();
+	/**
+	 * Closes the temporary file and atomically moves it to the given location,
+	 * replacing any existing file.
+	 *
+	 * @param target the location to which the copy will be moved
+	 * @return the SHA-256 digest of the copied data
+	 * @throws IOException if the file cannot be closed or moved
+	 */
+	public byte[] commit(File target) throws IOException {
+		closeChannel();
+
+		try {
+			Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		return digest.digest();
+	}
+
+	/**
+	 * Closes and deletes the temporary file without committing it. Has no
+	 * effect if the copy has already been committed.
+	 */
+	public void discard() {
+		try {
+			channel.close();
+		} catch (IOException e) {}
+		file.delete();
+	}
+
+	private void closeChannel() throws IOException {
+		if (channel.isOpen()) {
+			channel.force(false);
+			channel.close();
+		}
+	}
+
+	private void copy(byte[] data, int offset, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		digest.update(data, offset, length);
 	}
 
 	@Override
 	public int read() throws IOException {
 		int t = super.read();
-		if (t > 0)
-			out.write(t);
+		if (t >= 0)
+			copy(new byte[] { (byte) t }, 0, 1);
 		return t;
 	}
 
@@ -39,7 +100,7 @@ public class InterceptInputStream extends FilterInputStream {
 	public int read(byte[] data, int offset, int length) throws IOException {
 		int t = super.read(data, offset, length);
 		if (t > 0)
-			out.write(data, offset, t);
+			copy(data, offset, t);
 		return t;
 	}
 
@@ -48,14 +109,14 @@ public class InterceptInputStream extends FilterInputStream {
 		System.out.println("skip(" + n + ")");
 		return super.skip(n);
 	}
-	
+
 
 	@Override
 	public boolean markSupported() {
 		System.out.println("markSupported()");
 		return false;
 	}
-	
+
 	@Override
 	public void mark(int readlimit) {
 		System.out.println("mark(" + readlimit + ")");
@@ -67,4 +128,12 @@ public class InterceptInputStream extends FilterInputStream {
 		throw new IOException("mark/reset not supported");
 	}
 
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			closeChannel();
+		}
+	}
 }
@@ -0,0 +1,122 @@
+package hentrope.runeframe.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Opens connections with timeouts, so that an unresponsive server causes an
+ * exception rather than hanging forever.
+ * <p>
+ * The bandwidth of every stream returned by {@link #monitor(InputStream)}
+ * is measured, and the read timeout given to new connections is scaled to
+ * the bandwidth measured so far. On a fast connection, a server that stops
+ * sending data is detected within a few seconds, while a slow connection is
+ * given more time before it is considered dead.
+ *
+ * @author hentrope
+ * @see Network#open(URL)
+ * @see Network#monitor(InputStream)
+ */
+public class Network {
+	public static final int CONNECT_TIMEOUT = 5000;
+	public static final int MIN_READ_TIMEOUT = 3000, MAX_READ_TIMEOUT = 15000;
+
+	/**
+	 * Number of times that a download will reconnect after a stall or
+	 * connection error before giving up.
+	 */
+	public static final int RECONNECTS = 3;
+
+	/**
+	 * Amount of data that a connection should be able to receive within its
+	 * read timeout, at the measured bandwidth.
+	 */
+	private static final int TIMEOUT_BYTES = 262144;
+
+	private static final Object lock = new Object();
+	private static long measuredBytes = 0, measuredNanos = 0;
+
+	/**
+	 * Opens a connection to the given URL, with the default connect timeout
+	 * and a read timeout scaled to the measured bandwidth.
+	 *
+	 * @param url the URL to connect to
+	 * @return a URLConnection that has not yet been connected
+	 * @throws IOException if there is an IOException while opening the connection
+	 */
+	public static URLConnection open(URL url) throws IOException {
+		return open(url, getReadTimeout());
+	}
+
+	/**
+	 * Opens a connection to the given URL with the given read timeout. The
+	 * connect timeout is the default, or the read timeout if it is shorter.
+	 *
+	 * @param url the URL to connect to
+	 * @param readTimeout number of milliseconds to wait for data before failing
+	 * @return a URLConnection that has not yet been connected
+	 * @throws IOException if there is an IOException while opening the connection
+	 */
+	public static URLConnection open(URL url, int readTimeout) throws IOException {
+		URLConnection connection = url.openConnection();
+		connection.setConnectTimeout(Math.min(CONNECT_TIMEOUT, readTimeout));
+		connection.setReadTimeout(readTimeout);
+		return connection;
+	}
+
+	/**
+	 * Wraps a stream read from the network so that its bandwidth is measured,
+	 * and a stall is reported as an exception.
+	 *
+	 * @param in stream read from the network
+	 * @return an InputStream that throws a SocketTimeoutException if the stream stalls
+	 */
+	public static InputStream monitor(InputStream in) {
+		return new StallDetectingInputStream(in);
+	}
+
+	/**
+	 * Returns the bandwidth of a single connection, averaged across all of
+	 * the monitored streams. Streams that are read at the same time are each
+	 * measured separately, so this is not their combined bandwidth.
+	 *
+	 * @return a number of bytes per second, or -1 if nothing has been measured
+	 */
+	public static long getBandwidth() {
+		synchronized (lock) {
+			if (measuredNanos <= 0)
+				return -1;
+			return (long) (measuredBytes * 1e9 / measuredNanos);
+		}
+	}
+
+	/**
+	 * Returns the read timeout for new connections, which allows enough time
+	 * to receive {@value #TIMEOUT_BYTES} bytes at the measured bandwidth.
+	 *
+	 * @return a number of milliseconds between {@value #MIN_READ_TIMEOUT} and {@value #MAX_READ_TIMEOUT}
+	 */
+	public static int getReadTimeout() {
+		long bandwidth = getBandwidth();
+		if (bandwidth <= 0)
+			return MAX_READ_TIMEOUT;
+
+		long timeout = TIMEOUT_BYTES * 1000L / bandwidth;
+		return (int) Math.max(MIN_READ_TIMEOUT, Math.min(MAX_READ_TIMEOUT, timeout));
+	}
+
+	/**
+	 * Records that a number of bytes were received over a period of time
+	 * spent waiting on the network.
+	 */
+	static void record(long bytes, long nanos) {
+		synchronized (lock) {
+			measuredBytes += bytes;
+			measuredNanos += nanos;
+		}
+	}
+
+	private Network() {}
+}
@@ -0,0 +1,586 @@
+package hentrope.runeframe.io;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Downloads a file over HTTP, keeping the data received so far in a partial
+ * file so that a download cut short by a connection error can be resumed on
+ * the next attempt, rather than starting over.
+ * <p>
+ * Data is only kept if the server advertises support for byte ranges, and
+ * provides both a Content-Length and a validator (a strong ETag or a
+ * Last-Modified date). When resuming, the validator is sent in an If-Range
+ * header, so that the server will send the whole file if it has changed.
+ * The partial data is then read back from disk before the remainder of the
+ * file is read from the network.
+ * <p>
+ * A download that can be resumed is also resumed while it is being read, by
+ * reconnecting if the connection fails or stalls. Stalls are detected using
+ * {@link Network#monitor(InputStream)}.
+ * <p>
+ * The header of the partial file records how much of the file has been
+ * received in order, so that data written ahead of that point by a
+ * {@link SegmentedInputStream} is not mistaken for a complete prefix.
+ * <p>
+ * The partial file is deleted when the download is closed, unless the
+ * download failed due to an error reading from the network.
+ *
+ * @author hentrope
+ * @see ResumableDownload#open(URL, String, File, int, HttpValidator)
+ */
+public class ResumableDownload implements Closeable {
+	private static final int MAGIC = 0x52464432; // "RFD2"
+	private static final long RECEIVED_OFFSET = 4;
+
+	/**
+	 * Opens a connection to the given URL, resuming the download stored in the
+	 * partial file if it is for the same URL and the server still has the same
+	 * version of the file.
+	 * <p>
+	 * If more than one connection is allowed and the download can be
+	 * resumed, the rest of the file will be split into segments that are
+	 * downloaded at the same time using a {@link SegmentedInputStream}.
+	 * <p>
+	 * If a validator is given for a copy of the file that is already stored
+	 * locally, and there is no partial download to resume, the request is
+	 * made conditional. If the server responds that the file has not been
+	 * modified, no data will be downloaded, and {@link #isNotModified()} will
+	 * return true.
+	 *
+	 * @param url the URL to be downloaded
+	 * @param acceptEncoding value of the Accept-Encoding header to be sent
+	 * @param partial file in which partially downloaded data is kept
+	 * @param connections maximum number of connections to be used at the same time
+	 * @param cached validator of the locally stored copy of the file, or null if there is none
+	 * @return an instance of ResumableDownload
+	 * @throws IOException if there is an IOException while connecting to the server
+	 */
+	public static ResumableDownload open(URL url, String acceptEncoding, File partial, int connections,
+			HttpValidator cached) throws IOException {
+		State saved = State.read(partial);
+		if (saved != null && !saved.matches(url, acceptEncoding))
+			saved = null;
+
+		URLConnection connection = Network.open(url);
+		connection.addRequestProperty("accept-encoding", acceptEncoding);
+
+		boolean ranged = saved != null && connection instanceof HttpURLConnection;
+		if (ranged) {
+			connection.addRequestProperty("range", "bytes=" + saved.received + "-");
+			connection.addRequestProperty("if-range", saved.validator);
+		} else if (cached != null)
+			cached.addTo(connection);
+
+		InputStream network;
+		try {
+			network = Network.monitor(connection.getInputStream());
+		} catch (IOException e) {
+			// The partial file is longer than the file on the server.
+			if (ranged && ((HttpURLConnection) connection).getResponseCode() == 416) {
+				((HttpURLConnection) connection).disconnect();
+				partial.delete();
+				return open(url, acceptEncoding, partial, connections, cached);
+			}
+			throw e;
+		}
+
+		try {
+			HttpValidator validator = HttpValidator.fromConnection(url, connection);
+			if (!ranged && cached != null && HttpValidator.isNotModified(connection)) {
+				partial.delete();
+				return new ResumableDownload(url, partial, null, network, 0, null, cached, true, connections);
+			}
+
+			if (ranged && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+				// The server may only send the requested range of the same file.
+				if (!saved.accepts(connection, saved.received)) {
+					network.close();
+					((HttpURLConnection) connection).disconnect();
+					partial.delete();
+					return open(url, acceptEncoding, partial, connections, cached);
+				}
+
+				return new ResumableDownload(url, partial, saved, network, validator, connections);
+			}
+
+			State state = State.fromConnection(url, acceptEncoding, connection);
+			if (state != null) {
+				try {
+					state.write(partial);
+				} catch (IOException e) {
+					state = null;
+				}
+			}
+			if (state == null)
+				partial.delete();
+
+			return new ResumableDownload(url, partial, state, network, connection.getContentLengthLong(),
+					connection.getContentEncoding(), validator, false, connections);
+		} catch (IOException | RuntimeException e) {
+			network.close();
+			throw e;
+		}
+	}
+
+
+
+	/**
+	 * Returns the Accept-Encoding that was sent by the download stored in the
+	 * partial file, so that the download can be resumed by sending the same
+	 * value.
+	 *
+	 * @param url the URL to be downloaded
+	 * @param partial file in which partially downloaded data is kept
+	 * @return the Accept-Encoding, or null if there is no partial download of the given URL
+	 */
+	public static String getPendingEncoding(URL url, File partial) {
+		State saved = State.read(partial);
+		return saved != null && saved.url.equals(url.toString()) ? saved.acceptEncoding : null;
+	}
+
+
+
+	private final URL url;
+	private final File partial;
+	private final State state;
+	private final long length, resumed;
+	private final int connections;
+	private final String encoding;
+	private final HttpValidator validator;
+	private final boolean notModified;
+	private final NetworkInputStream network;
+	private final InputStream stream;
+
+	private ResumableDownload(URL url, File partial, State state, InputStream network, HttpValidator validator,
+			int connections) throws IOException {
+		this.url = url;
+		this.partial = partial;
+		this.state = state;
+		this.length = state.length;
+		this.resumed = state.received;
+		this.connections = connections;
+		this.encoding = state.encoding.isEmpty() ? null : state.encoding;
+		this.validator = validator;
+		this.notModified = false;
+		this.network = new NetworkInputStream(network, state.length - state.received);
+
+		FileInputStream saved = new FileInputStream(partial);
+		try {
+			long skip = state.dataOffset;
+			while (skip > 0) {
+				long skipped = saved.skip(skip);
+				if (skipped <= 0)
+					throw new EOFException("Partial download is shorter than its header.");
+				skip -= skipped;
+			}
+		} catch (IOException e) {
+			saved.close();
+			this.network.close();
+			throw e;
+		}
+
+		this.stream = new SequenceInputStream(new BoundedInputStream(saved, state.received), this.network);
+	}
+
+	private ResumableDownload(URL url, File partial, State state, InputStream network, long length, String encoding,
+			HttpValidator validator, boolean notModified, int connections) {
+		this.url = url;
+		this.partial = partial;
+		this.state = state;
+		this.length = length;
+		this.resumed = 0;
+		this.connections = connections;
+		this.encoding = encoding;
+		this.validator = validator;
+		this.notModified = notModified;
+		this.network = new NetworkInputStream(network, length);
+		this.stream = this.network;
+	}
+
+	/**
+	 * Returns a stream containing the entire file, starting with any data
+	 * that was downloaded by a previous attempt.
+	 *
+	 * @return an InputStream containing the downloaded file
+	 */
+	public InputStream getInputStream() {
+		return stream;
+	}
+
+	/**
+	 * @return the length of the entire file in bytes, or -1 if it is not known
+	 */
+	public long getContentLength() {
+		return length;
+	}
+
+	/**
+	 * @return the Content-Encoding of the file, or null if it was not specified
+	 */
+	public String getContentEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * @return the number of bytes that were read from a previous attempt, rather than downloaded
+	 */
+	public long getResumedLength() {
+		return resumed;
+	}
+
+	/**
+	 * @return the validator returned by the server for this file, or null if it did not return one
+	 */
+	public HttpValidator getValidator() {
+		return validator;
+	}
+
+	/**
+	 * @return whether the server responded that the locally stored copy of the file is still current
+	 */
+	public boolean isNotModified() {
+		return notModified;
+	}
+
+	/**
+	 * Closes the connection. The partial file is deleted unless the download
+	 * was interrupted by an error reading from the network, in which case it
+	 * is kept so that the next attempt can resume from it.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			stream.close();
+		} finally {
+			if (state == null || !network.interrupted)
+				partial.delete();
+		}
+	}
+
+	/**
+	 * Passes along data read from the network, writing a copy to the
+	 * partial file. Keeps track of whether a read failed due to a network
+	 * error, rather than the stream being closed.
+	 * <p>
+	 * If the download can be resumed, a read that fails due to a network
+	 * error or a stall reconnects and requests the rest of the file, up to
+	 * {@link Network#RECONNECTS} times, before the error is thrown.
+	 */
+	private class NetworkInputStream extends FilterInputStream {
+		private long remaining;
+		private FileChannel out = null;
+		private volatile boolean closed = false, interrupted = false;
+
+		NetworkInputStream(InputStream in, long remaining) {
+			super(in);
+			this.remaining = remaining;
+
+			if (state != null) {
+				try {
+					out = new RandomAccessFile(partial, "rw").getChannel();
+				} catch (IOException e) {}
+				this.in = split(in, state.length - remaining);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) > 0 ? b[0] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] data, int offset, int length) throws IOException {
+			IOException failure = null;
+			for (int attempt = 0; attempt <= Network.RECONNECTS; attempt++) {
+				try {
+					if (failure != null)
+						reconnect();
+
+					int t = super.read(data, offset, length);
+					if (t < 0 && remaining > 0)
+						throw new EOFException("Connection closed with " + remaining + " bytes remaining.");
+
+					if (t > 0) {
+						remaining -= t;
+						save(data, offset, t);
+					}
+					return t;
+				} catch (IOException e) {
+					if (closed)
+						throw e;
+					failure = e;
+					if (state == null)
+						break;
+				}
+			}
+
+			interrupted = true;
+			throw failure;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] buff = new byte[(int) Math.min(n, 8192)];
+			int t = read(buff, 0, buff.length);
+			return Math.max(t, 0);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			try {
+				super.close();
+			} finally {
+				if (out != null)
+					out.close();
+			}
+		}
+
+		/**
+		 * Replaces the current connection with a new one, which requests the
+		 * part of the file that has not yet been received.
+		 */
+		private void reconnect() throws IOException {
+			long position = state.length - remaining;
+			try {
+				in.close();
+			} catch (IOException e) {}
+
+			URLConnection connection = Network.open(url);
+			connection.addRequestProperty("accept-encoding", state.acceptEncoding);
+			connection.addRequestProperty("range", "bytes=" + position + "-");
+			connection.addRequestProperty("if-range", state.validator);
+
+			InputStream stream = Network.monitor(connection.getInputStream());
+			if (((HttpURLConnection) connection).getResponseCode() != HttpURLConnection.HTTP_PARTIAL
+					|| !state.accepts(connection, position)) {
+				stream.close();
+				throw new IOException("Server did not resume the download at byte " + position + ".");
+			}
+
+			in = split(stream, position);
+		}
+
+		/**
+		 * Splits the rest of the file into segments, if it can be written to
+		 * the partial file.
+		 */
+		private InputStream split(InputStream stream, long position) {
+			if (out == null)
+				return stream;
+			return SegmentedInputStream.split(stream, url, state.acceptEncoding, state.validator,
+					position, state.length, connections, out, state.dataOffset);
+		}
+
+		/*
+		 * If the partial file cannot be written, stop saving data rather than
+		 * failing the download. The received length in the header is only
+		 * updated after the data itself has been written.
+		 */
+		private void save(byte[] data, int offset, int length) {
+			if (out == null)
+				return;
+
+			try {
+				long position = state.length - remaining;
+				// A segmented stream writes its data to the partial file itself.
+				if (!(in instanceof SegmentedInputStream))
+					SegmentedInputStream.writeFully(out, ByteBuffer.wrap(data, offset, length),
+							state.dataOffset + position - length);
+				state.writeReceived(out, position);
+			} catch (IOException e) {
+				try {
+					out.close();
+				} catch (IOException e2) {}
+				out = null;
+				partial.delete();
+			}
+		}
+	}
+
+	/**
+	 * Reads at most a given number of bytes from the underlying stream.
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+		private long remaining;
+
+		BoundedInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int t = super.read();
+			if (t >= 0)
+				remaining--;
+			return t;
+		}
+
+		@Override
+		public int read(byte[] data, int offset, int length) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int t = super.read(data, offset, (int) Math.min(length, remaining));
+			if (t < 0)
+				throw new EOFException("Partial download is shorter than expected.");
+			remaining -= t;
+			return t;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long t = super.skip(Math.min(n, remaining));
+			remaining -= t;
+			return t;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	/**
+	 * The header of the partial file, describing which file the partial data
+	 * belongs to, and how much of it has been received.
+	 */
+	static class State {
+		final String url, acceptEncoding, encoding, validator;
+		final long length;
+		long dataOffset = 0, received = 0;
+		private final ByteBuffer receivedBuffer = ByteBuffer.allocate(8);
+
+		State(String url, String acceptEncoding, String encoding, String validator, long length) {
+			this.url = url;
+			this.acceptEncoding = acceptEncoding;
+			this.encoding = encoding;
+			this.validator = validator;
+			this.length = length;
+		}
+
+		/**
+		 * Creates the state for a new download, or returns null if the
+		 * response does not allow the download to be resumed.
+		 */
+		static State fromConnection(URL url, String acceptEncoding, URLConnection connection) {
+			if (!(connection instanceof HttpURLConnection))
+				return null;
+			if (!"bytes".equalsIgnoreCase(connection.getHeaderField("accept-ranges")))
+				return null;
+
+			long length = connection.getContentLengthLong();
+			String validator = getValidator(connection);
+			if (length <= 0 || validator == null)
+				return null;
+
+			String encoding = connection.getContentEncoding();
+			return new State(url.toString(), acceptEncoding, encoding != null ? encoding : "", validator, length);
+		}
+
+		/**
+		 * Reads the state stored at the start of the partial file, or returns
+		 * null if there is no partial file or it is malformed.
+		 */
+		static State read(File file) {
+			if (!file.isFile())
+				return null;
+
+			try ( RandomAccessFile raf = new RandomAccessFile(file, "r") ) {
+				if (raf.readInt() != MAGIC)
+					return null;
+
+				long received = raf.readLong();
+				State state = new State(raf.readUTF(), raf.readUTF(), raf.readUTF(), raf.readUTF(), raf.readLong());
+				state.dataOffset = raf.getFilePointer();
+				state.received = Math.min(received, raf.length() - state.dataOffset);
+				return state.received > 0 && state.received < state.length ? state : null;
+			} catch (IOException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * Replaces the partial file with a new one containing only this state.
+		 */
+		void write(File file) throws IOException {
+			try ( RandomAccessFile raf = new RandomAccessFile(file, "rw") ) {
+				raf.setLength(0);
+				raf.writeInt(MAGIC);
+				raf.writeLong(0);
+				raf.writeUTF(url);
+				raf.writeUTF(acceptEncoding);
+				raf.writeUTF(encoding);
+				raf.writeUTF(validator);
+				raf.writeLong(length);
+				dataOffset = raf.getFilePointer();
+			}
+		}
+
+		/**
+		 * Records in the header how much of the file has been received in
+		 * order. This should only be called once that data has been written.
+		 */
+		void writeReceived(FileChannel channel, long received) throws IOException {
+			receivedBuffer.clear();
+			receivedBuffer.putLong(0, received);
+			SegmentedInputStream.writeFully(channel, receivedBuffer, RECEIVED_OFFSET);
+		}
+
+		boolean matches(URL url, String acceptEncoding) {
+			return this.url.equals(url.toString()) && this.acceptEncoding.equals(acceptEncoding);
+		}
+
+		/**
+		 * Checks that a partial response contains the rest of this file,
+		 * starting at the given offset.
+		 */
+		boolean accepts(URLConnection connection, long offset) {
+			String range = connection.getHeaderField("content-range");
+			String expected = "bytes " + offset + "-" + (length - 1) + "/" + length;
+			String encoding = connection.getContentEncoding();
+			String validator = getValidator(connection);
+
+			return expected.equalsIgnoreCase(range != null ? range.trim() : null)
+					&& this.encoding.equals(encoding != null ? encoding : "")
+					&& (validator == null || this.validator.equals(validator));
+		}
+
+		/**
+		 * Returns the strong ETag of the response, or its Last-Modified date
+		 * if it has no strong ETag. Weak ETags cannot be used with If-Range.
+		 */
+		private static String getValidator(URLConnection connection) {
+			String etag = connection.getHeaderField("etag");
+			if (etag != null && etag.startsWith("\""))
+				return etag;
+			return connection.getHeaderField("last-modified");
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package hentrope.runeframe.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * An InputStream that reads data written to it by another thread through a
+ * bounded ring buffer, used in place of {@link java.io.PipedInputStream}.
+ * <p>
+ * Unlike a piped stream, which polls once per second whenever its buffer is
+ * full or empty, the reader and writer wake each other as soon as data or
+ * space becomes available. The writer may also pass along an exception using
+ * {@link #fail(Throwable)}, which will be thrown to the reader once all data
+ * written before the failure has been read.
+ *
+ * @author hentrope
+ */
+public class RingBufferStream extends InputStream {
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	private final byte[] buffer;
+	private final OutputStream output = new RingBufferOutputStream();
+	private int readPos = 0, count = 0;
+	private boolean writerClosed = false, readerClosed = false;
+	private Throwable failure = null;
+
+	public RingBufferStream() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public RingBufferStream(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive.");
+		buffer = new byte[capacity];
+	}
+
+	/**
+	 * Returns the OutputStream used by the writing thread. Closing it will
+	 * signal the end of the stream to the reader.
+	 *
+	 * @return the OutputStream that writes to this stream's buffer
+	 */
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	/**
+	 * Closes the writing side of this stream due to an exception. Once the
+	 * reader has read all of the buffered data, the exception will be thrown
+	 * from the reader's next read.
+	 *
+	 * @param t the exception that caused the writer to fail
+	 */
+	public synchronized void fail(Throwable t) {
+		failure = t;
+		writerClosed = true;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		if (!awaitData())
+			return -1;
+
+		int b = buffer[readPos] & 0xFF;
+		readPos = (readPos + 1) % buffer.length;
+		count--;
+		notifyAll();
+		return b;
+	}
+
+	@Override
+	public synchronized int read(byte[] data, int offset, int length) throws IOException {
+		if (length == 0)
+			return 0;
+		if (!awaitData())
+			return -1;
+
+		int total = Math.min(length, count);
+		int first = Math.min(total, buffer.length - readPos);
+		System.arraycopy(buffer, readPos, data, offset, first);
+		System.arraycopy(buffer, 0, data, offset + first, total - first);
+
+		readPos = (readPos + total) % buffer.length;
+		count -= total;
+		notifyAll();
+		return total;
+	}
+
+	@Override
+	public synchronized int available() {
+		return count;
+	}
+
+	/**
+	 * Closes the reading side of this stream. Any further writes will fail,
+	 * allowing the writing thread to stop.
+	 */
+	@Override
+	public synchronized void close() {
+		readerClosed = true;
+		notifyAll();
+	}
+
+	private synchronized void write(byte[] data, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (writerClosed)
+				throw new IOException("Write end closed");
+
+			while (count == buffer.length) {
+				if (readerClosed)
+					throw new IOException("Read end closed");
+				await();
+			}
+			if (readerClosed)
+				throw new IOException("Read end closed");
+
+			int writePos = (readPos + count) % buffer.length;
+			int total = Math.min(length, buffer.length - count);
+			int first = Math.min(total, buffer.length - writePos);
+			System.arraycopy(data, offset, buffer, writePos, first);
+			System.arraycopy(data, offset + first, buffer, 0, total - first);
+
+			count += total;
+			offset += total;
+			length -= total;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until there is data in the buffer, or the writer has closed.
+	 * Must be called while holding this stream's lock.
+	 *
+	 * @return true if there is data to be read, or false if the stream has ended
+	 */
+	private boolean awaitData() throws IOException {
+		if (readerClosed)
+			throw new IOException("Stream closed");
+
+		while (count == 0) {
+			if (writerClosed) {
+				if (failure instanceof IOException)
+					throw (IOException) failure;
+				else if (failure != null)
+					throw new IOException(failure);
+				return false;
+			}
+			await();
+		}
+
+		return true;
+	}
+
+	private synchronized void closeWriter() {
+		writerClosed = true;
+		notifyAll();
+	}
+
+	private void await() throws InterruptedIOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private class RingBufferOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			RingBufferStream.this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws IOException {
+			RingBufferStream.this.write(data, offset, length);
+		}
+
+		@Override
+		public void close() {
+			closeWriter();
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package hentrope.runeframe.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An InputStream that downloads the remainder of a file over several
+ * connections at the same time, each fetching a different byte range, and
+ * returns the data in order.
+ * <p>
+ * The first segment is read from the connection that has already been
+ * opened, so only the remaining segments require new requests. Each of the
+ * remaining segments is downloaded on a separate thread, and written to its
+ * place in the partial file as it arrives, so that only a small window of
+ * each segment is held in memory. The data can be read back as soon as it
+ * has been written. A segment whose connection fails or stalls reconnects
+ * on its own, up to {@link Network#RECONNECTS} times, without discarding
+ * the data it has already received.
+ * <p>
+ * Data from the first segment is written to the partial file as it is read,
+ * so everything returned by this stream has already been saved.
+ *
+ * @author hentrope
+ * @see SegmentedInputStream#split(InputStream, URL, String, String, long, long, int, FileChannel, long)
+ */
+class SegmentedInputStream extends InputStream {
+	public static final int MIN_SEGMENT_SIZE = 262144;
+	private static final int WINDOW_SIZE = 65536;
+
+	/**
+	 * Splits the remainder of a file into segments to be downloaded at the
+	 * same time. If the file is too small to be worth splitting, the given
+	 * stream is returned as-is.
+	 *
+	 * @param first stream from the existing connection, starting at the given offset
+	 * @param url the URL being downloaded
+	 * @param acceptEncoding value of the Accept-Encoding header to be sent
+	 * @param validator value of the If-Range header to be sent, or null if there is none
+	 * @param offset offset within the file at which the first stream begins
+	 * @param length length of the entire file
+	 * @param connections maximum number of connections to be used
+	 * @param channel channel of the partial file, which the data is written to
+	 * @param dataOffset position in the partial file at which the data of the file begins
+	 * @return an InputStream containing the remainder of the file
+	 */
+	static InputStream split(InputStream first, URL url, String acceptEncoding, String validator,
+			long offset, long length, int connections, FileChannel channel, long dataOffset) {
+		long remaining = length - offset;
+		int count = (int) Math.min(connections, remaining / MIN_SEGMENT_SIZE);
+		if (count < 2 || remaining / count >= Integer.MAX_VALUE)
+			return first;
+
+		return new SegmentedInputStream(first, url, acceptEncoding, validator, offset, length, count,
+				channel, dataOffset);
+	}
+
+	/**
+	 * Writes the entire buffer to the channel, starting at the given position.
+	 */
+	static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+
+
+	private final InputStream first;
+	private final Segment[] segments;
+	private final FileChannel channel;
+	private long firstPosition, firstRemaining;
+	private int current = -1, position = 0;
+	private volatile boolean closed = false;
+
+	private SegmentedInputStream(InputStream first, URL url, String acceptEncoding, String validator,
+			long offset, long length, int count, FileChannel channel, long dataOffset) {
+		long size = (length - offset) / count;
+
+		this.first = first;
+		this.channel = channel;
+		this.firstPosition = dataOffset + offset;
+		this.firstRemaining = size;
+		this.segments = new Segment[count - 1];
+
+		for (int i = 0; i < segments.length; i++) {
+			long start = offset + size * (i + 1);
+			long end = i == segments.length - 1 ? length : start + size;
+			segments[i] = new Segment(url, acceptEncoding, validator, start, (int) (end - start), length,
+					channel, dataOffset + start);
+
+			Thread thread = new Thread(segments[i], "Download Segment " + (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) > 0 ? b[0] & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] data, int offset, int length) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		if (length == 0)
+			return 0;
+
+		if (current < 0) {
+			if (firstRemaining > 0) {
+				int t = first.read(data, offset, (int) Math.min(length, firstRemaining));
+				if (t < 0)
+					throw new EOFException("Connection closed with " + firstRemaining + " bytes remaining.");
+				writeFully(channel, ByteBuffer.wrap(data, offset, t), firstPosition);
+				firstPosition += t;
+				firstRemaining -= t;
+				return t;
+			}
+
+			// The rest of this response is provided by the other segments.
+			try {
+				first.close();
+			} catch (IOException e) {}
+			current = 0;
+		}
+
+		while (current < segments.length && position == segments[current].size) {
+			current++;
+			position = 0;
+		}
+		if (current == segments.length)
+			return -1;
+
+		Segment segment = segments[current];
+		int count = Math.min(length, segment.await(position) - position);
+		ByteBuffer buffer = ByteBuffer.wrap(data, offset, count);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, segment.position + position + buffer.position() - offset) < 0)
+				throw new EOFException("Partial file is shorter than the data written to it.");
+		}
+		position += count;
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		try {
+			first.close();
+		} finally {
+			for (Segment segment: segments)
+				segment.close();
+		}
+	}
+
+	/**
+	 * A single byte range of the file, downloaded into the partial file. If
+	 * the connection fails or stalls, the segment reconnects and requests the
+	 * part of the range that it has not yet received.
+	 */
+	private static class Segment implements Runnable {
+		private final URL url;
+		private final String acceptEncoding, validator;
+		private final FileChannel channel;
+		private final long start, length, position;
+		private final int size;
+		private int filled = 0;
+		private Throwable failure = null;
+		private InputStream in = null;
+		private boolean closed = false;
+
+		Segment(URL url, String acceptEncoding, String validator, long start, int size, long length,
+				FileChannel channel, long position) {
+			this.url = url;
+			this.acceptEncoding = acceptEncoding;
+			this.validator = validator;
+			this.start = start;
+			this.size = size;
+			this.length = length;
+			this.channel = channel;
+			this.position = position;
+		}
+
+		@Override
+		public void run() {
+			for (int attempt = 0; ; attempt++) {
+				try {
+					download();
+					return;
+				} catch (Throwable t) {
+					synchronized (this) {
+						if (closed)
+							return;
+						else if (t instanceof IOException && attempt < Network.RECONNECTS)
+							continue;
+						failure = t;
+						notifyAll();
+						return;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Requests the rest of this segment, and writes it to the partial file.
+		 */
+		private void download() throws IOException {
+			String range = (start + filled) + "-" + (start + size - 1);
+			HttpURLConnection connection = (HttpURLConnection) Network.open(url);
+			connection.addRequestProperty("accept-encoding", acceptEncoding);
+			connection.addRequestProperty("range", "bytes=" + range);
+			if (validator != null)
+				connection.addRequestProperty("if-range", validator);
+
+			try ( InputStream stream = Network.monitor(connection.getInputStream()) ) {
+				synchronized (this) {
+					if (closed)
+						return;
+					in = stream;
+				}
+
+				// A different response will not change on reconnecting.
+				String contentRange = connection.getHeaderField("content-range");
+				if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL
+						|| !("bytes " + range + "/" + length).equalsIgnoreCase(contentRange != null ? contentRange.trim() : null)) {
+					synchronized (this) {
+						failure = new IOException("Server did not return bytes " + range + " of the file.");
+						notifyAll();
+					}
+					return;
+				}
+
+				byte[] window = new byte[WINDOW_SIZE];
+				int offset = filled;
+				while (offset < size) {
+					int t = stream.read(window, 0, Math.min(window.length, size - offset));
+					if (t < 0)
+						throw new EOFException("Connection closed with " + (size - offset) + " bytes remaining.");
+					writeFully(channel, ByteBuffer.wrap(window, 0, t), position + offset);
+					offset += t;
+
+					synchronized (this) {
+						filled = offset;
+						notifyAll();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Waits until data is available past the given position.
+		 *
+		 * @return the number of bytes of this segment that have been downloaded
+		 */
+		synchronized int await(int position) throws IOException {
+			while (filled <= position) {
+				if (failure instanceof IOException)
+					throw (IOException) failure;
+				else if (failure != null)
+					throw new IOException(failure);
+				else if (closed)
+					throw new IOException("Stream closed");
+
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			return filled;
+		}
+
+		synchronized void close() {
+			closed = true;
+			notifyAll();
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package hentrope.runeframe.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+/**
+ * Measures the rate at which data arrives from the network, and throws an
+ * exception if it falls below a minimum throughput. This detects connections
+ * that trickle data too slowly to ever finish, which a read timeout alone
+ * does not catch.
+ * <p>
+ * Only the time spent blocked in a read is measured, so a stream that is
+ * read slowly is not mistaken for a stall. The minimum throughput is a
+ * fraction of the bandwidth measured by {@link Network}, and is never lower
+ * than {@value #MIN_THROUGHPUT} bytes per second.
+ *
+ * @author hentrope
+ */
+class StallDetectingInputStream extends FilterInputStream {
+	public static final int WINDOW = 2000, MIN_THROUGHPUT = 4096, STALL_FRACTION = 20;
+
+	private long windowBytes = 0, windowNanos = 0;
+
+	StallDetectingInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) > 0 ? b[0] & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] data, int offset, int length) throws IOException {
+		long start = System.nanoTime();
+		int t = super.read(data, offset, length);
+		windowNanos += System.nanoTime() - start;
+
+		if (t > 0)
+			windowBytes += t;
+		if (windowNanos >= WINDOW * 1000000L)
+			check();
+		return t;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		byte[] buff = new byte[(int) Math.min(n, 8192)];
+		int t = read(buff, 0, buff.length);
+		return Math.max(t, 0);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (windowNanos > 0)
+			Network.record(windowBytes, windowNanos);
+		windowBytes = windowNanos = 0;
+		super.close();
+	}
+
+	/**
+	 * Ends the current window, throwing an exception if the throughput
+	 * during the window was below the minimum.
+	 */
+	private void check() throws SocketTimeoutException {
+		long throughput = (long) (windowBytes * 1e9 / windowNanos);
+		long minimum = Math.max(MIN_THROUGHPUT, Network.getBandwidth() / STALL_FRACTION);
+
+		Network.record(windowBytes, windowNanos);
+		windowBytes = windowNanos = 0;
+
+		if (throughput < minimum)
+			throw new SocketTimeoutException("Download stalled at " + throughput + " bytes per second.");
+	}
+}
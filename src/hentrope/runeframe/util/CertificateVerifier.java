@@ -1,10 +1,16 @@
 package hentrope.runeframe.util;
 
 import java.io.*;
+import java.net.URL;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.cert.*;
 import java.security.cert.Certificate;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.zip.ZipInputStream;
 
 import javax.naming.NamingException;
@@ -14,31 +20,79 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 
+import hentrope.runeframe.io.ContentDigest;
+
 /**
  * Handles the verification of certificates used to sign code inside of
  * the gamepack.
+ * <p>
+ * The trusted certificate authorities are loaded from the certificates
+ * bundled with RuneFrame, any .pem files in the certificate directory, and
+ * optionally the platform's trust store. Since parsing every certificate is
+ * slow, the loaded authorities can be stored in an index file, containing
+ * the SHA-256 fingerprint and DER encoding of each one. The index records
+ * the modification times of the sources it was built from, and is rebuilt
+ * when any of them change.
+ * <p>
+ * Loading can be started on a background thread using {@link #start()}, so
+ * that it is finished before the first certificate needs to be verified.
+ * <p>
+ * Chains that have been verified are remembered by their fingerprint until
+ * the first of their certificates expires, so that verifying the same chain
+ * again is cheap. A single instance can be used by many threads at once.
  * 
  * @author hentrope
  * @see CertificateVerifier#verify(Certificate[])
  */
 public class CertificateVerifier {
-	private final File directory;
+	private static final int MAGIC = 0x52465449; // "RFTI"
+
+	private final File directory, index;
 	private final boolean includeNative;
+	private final FutureTask<Map<ByteBuffer, byte[]>> loader;
 
 	private Set<X509Certificate> certificates;
-	private Date date;
 	private TrustManagerFactory tmf;
 	private CertificateFactory cf;
-	private Certificate[] cache;
+	private final Map<ByteBuffer, Long> verified = new ConcurrentHashMap<ByteBuffer, Long>();
 
-	public CertificateVerifier(File directory, boolean includeNative) {
+	/**
+	 * @param directory directory containing additional .pem files to be trusted
+	 * @param index file in which the loaded certificates are stored, or null if they should not be stored
+	 * @param includeNative whether the platform's trusted certificates should also be trusted
+	 */
+	public CertificateVerifier(File directory, File index, boolean includeNative) {
 		this.directory = directory;
+		this.index = index;
 		this.includeNative = includeNative;
+		this.loader = new FutureTask<Map<ByteBuffer, byte[]>>(new Callable<Map<ByteBuffer, byte[]>>() {
+			@Override
+			public Map<ByteBuffer, byte[]> call() {
+				return load();
+			}
+		});
+	}
+
+	public CertificateVerifier(File directory, boolean includeNative) {
+		this(directory, null, includeNative);
 	}
 
 	public CertificateVerifier(File directory) {
-		this.directory = directory;
-		this.includeNative = false;
+		this(directory, null, false);
+	}
+
+	/**
+	 * Starts loading the trusted certificates on a background thread. If
+	 * this is not called, they are loaded by the first call to
+	 * {@link #verify(Certificate[])}.
+	 * 
+	 * @return this instance
+	 */
+	public CertificateVerifier start() {
+		Thread thread = new Thread(loader, "Trust Store Loader");
+		thread.setDaemon(true);
+		thread.start();
+		return this;
 	}
 
 	/**
@@ -50,23 +104,19 @@ public class CertificateVerifier {
 	 * @throws GeneralSecurityException if the chain of certificates cannot be trusted
 	 */
 	public void verify(Certificate[] certs) throws GeneralSecurityException {
-		// Use lazy initialization to load the list of certificates
-		if (certificates == null)
-			load();
+		// Load the trusted certificates, or wait for them to finish loading.
+		Map<ByteBuffer, byte[]> trusted = getTrusted();
 
 		// Reject null certificate chain.
 		if (certs == null)
 			throw new CertificateException("Null certificate chain.");
 
-		// Check the provided certificate array against the cached array. If the two are equal,
-		// immediately return without further checks.
-		if (cache != null && certs.length == cache.length) {
-			boolean equal = true;
-			for (int i = 0; i < certs.length; i++)
-				equal = equal && certs[i] == cache[i];
-			if (equal)
-				return;
-		}
+		// If the same chain has already been verified and has not expired since, immediately
+		// return without further checks.
+		ByteBuffer key = ByteBuffer.wrap(fingerprint(certs));
+		Long expiry = verified.get(key);
+		if (expiry != null && System.currentTimeMillis() <= expiry)
+			return;
 
 		// For the RuneScape client, the certificate chain length should always be greater than one.
 		if (certs.length < 2)
@@ -79,13 +129,15 @@ public class CertificateVerifier {
 
 		// Verify that the last certificate in the chain is a trusted certificate authority.
 		X509Certificate last = (X509Certificate) certs[certs.length - 1];
-		if (!certificates.contains(last))
+		byte[] encoded = last.getEncoded();
+		if (!Arrays.equals(encoded, trusted.get(ByteBuffer.wrap(fingerprint(encoded)))))
 			throw new CertificateException("Last certificate in chain is not a trusted certificate authority.");
 
 		// Since all CA certificates are checked for validity, this is unnecessary.
 		// last.checkValidity();
 
 		String rootOrg = getOrganization(last);
+		long notAfter = last.getNotAfter().getTime();
 		for (int i = certs.length - 2; i >= 0; i--) {
 			X509Certificate cert = (X509Certificate) certs[i];
 
@@ -103,9 +155,10 @@ public class CertificateVerifier {
 
 			cert.verify(certs[i+1].getPublicKey());
 			cert.checkValidity();
+			notAfter = Math.min(notAfter, cert.getNotAfter().getTime());
 		}
 
-		cache = certs;
+		verified.put(key, notAfter);
 	}
 
 	private String getOrganization(X509Certificate cert) throws CertificateException {
@@ -123,18 +176,176 @@ public class CertificateVerifier {
 		throw new CertificateException("Organization name not found.");
 	}
 
-	private void load() {
-		certificates = new HashSet<X509Certificate>();
-		date = new Date();
+	private Map<ByteBuffer, byte[]> getTrusted() throws GeneralSecurityException {
+		loader.run();
+		try {
+			return loader.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new GeneralSecurityException("Interrupted while loading trusted certificates.");
+		} catch (ExecutionException e) {
+			throw new GeneralSecurityException("Unable to load trusted certificates.", e.getCause());
+		}
+	}
+
+	/**
+	 * Loads the trusted certificates from the index if it is up to date, or
+	 * from their sources otherwise, then removes any certificates that are
+	 * not currently valid.
+	 * 
+	 * @return the DER encoding of each trusted certificate, keyed by its fingerprint
+	 */
+	private Map<ByteBuffer, byte[]> load() {
+		byte[] stamp = getSourceStamp();
+		List<Anchor> anchors = index != null ? readIndex(stamp) : null;
+
+		if (anchors == null) {
+			certificates = new HashSet<X509Certificate>();
+
+			loadInternal();
 
-		loadInternal();
+			File[] files = directory.listFiles();
+			if (files != null)
+				loadDirectory(files);
 
-		File[] files = directory.listFiles();
-		if (files != null)
-			loadDirectory(files);
+			if (includeNative)
+				loadNative();
 
-		if (includeNative)
-			loadNative();
+			anchors = new ArrayList<Anchor>();
+			for (X509Certificate cert: certificates) {
+				try {
+					anchors.add(new Anchor(cert));
+				} catch (CertificateEncodingException e) {}
+			}
+			certificates = null;
+
+			if (index != null)
+				writeIndex(stamp, anchors);
+		}
+
+		long now = System.currentTimeMillis();
+		Map<ByteBuffer, byte[]> trusted = new HashMap<ByteBuffer, byte[]>();
+		for (Anchor anchor: anchors)
+			if (anchor.notBefore <= now && now <= anchor.notAfter)
+				trusted.put(ByteBuffer.wrap(anchor.fingerprint), anchor.encoded);
+		return trusted;
+	}
+
+	/**
+	 * Computes a digest of the location and modification time of every
+	 * source of trusted certificates, which changes whenever one of them
+	 * is modified.
+	 */
+	private byte[] getSourceStamp() {
+		MessageDigest digest = ContentDigest.newDigest();
+		try ( DataOutputStream out = new DataOutputStream(new DigestOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) {}
+		}, digest)) ) {
+			URL internal = CertificateVerifier.class.getClassLoader().getResource("resource/certificates.zip");
+			out.writeUTF(internal != null ? internal.toString() : "");
+			out.writeLong(internal != null ? internal.openConnection().getLastModified() : 0);
+
+			File[] files = directory.listFiles();
+			if (files != null) {
+				Arrays.sort(files);
+				for (File file: files) {
+					if (file.getName().endsWith(".pem")) {
+						out.writeUTF(file.getName());
+						out.writeLong(file.lastModified());
+						out.writeLong(file.length());
+					}
+				}
+			}
+
+			out.writeBoolean(includeNative);
+			if (includeNative) {
+				String home = System.getProperty("java.home"), store = System.getProperty("javax.net.ssl.trustStore");
+				out.writeUTF(home != null ? home : "");
+				out.writeUTF(store != null ? store : "");
+				out.writeLong(new File(home, "lib/security/cacerts").lastModified());
+				out.writeLong(store != null ? new File(store).lastModified() : 0);
+			}
+		} catch (IOException e) {
+			// A stamp that cannot be computed never matches the index.
+			return new byte[0];
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Reads the certificates stored in the index, or returns null if the
+	 * index is missing, malformed, or was built from different sources.
+	 */
+	private List<Anchor> readIndex(byte[] stamp) {
+		if (!index.isFile() || stamp.length == 0)
+			return null;
+
+		try ( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index))) ) {
+			if (in.readInt() != MAGIC)
+				return null;
+
+			byte[] expected = new byte[ContentDigest.LENGTH];
+			in.readFully(expected);
+			if (!Arrays.equals(stamp, expected))
+				return null;
+
+			int count = in.readInt();
+			List<Anchor> anchors = new ArrayList<Anchor>(count);
+			for (int i = 0; i < count; i++) {
+				byte[] fingerprint = new byte[ContentDigest.LENGTH];
+				in.readFully(fingerprint);
+				long notBefore = in.readLong(), notAfter = in.readLong();
+				byte[] encoded = new byte[in.readInt()];
+				in.readFully(encoded);
+
+				if (!Arrays.equals(fingerprint, fingerprint(encoded)))
+					return null;
+				anchors.add(new Anchor(fingerprint, notBefore, notAfter, encoded));
+			}
+			return anchors;
+		} catch (IOException | NegativeArraySizeException e) {
+			return null;
+		}
+	}
+
+	private void writeIndex(byte[] stamp, List<Anchor> anchors) {
+		if (stamp.length == 0)
+			return;
+
+		try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index))) ) {
+			out.writeInt(MAGIC);
+			out.write(stamp);
+			out.writeInt(anchors.size());
+			for (Anchor anchor: anchors) {
+				out.write(anchor.fingerprint);
+				out.writeLong(anchor.notBefore);
+				out.writeLong(anchor.notAfter);
+				out.writeInt(anchor.encoded.length);
+				out.write(anchor.encoded);
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to save trusted certificate index to disk.");
+			e.printStackTrace();
+			index.delete();
+		}
+	}
+
+	private static byte[] fingerprint(byte[] encoded) {
+		return ContentDigest.newDigest().digest(encoded);
+	}
+
+	/**
+	 * Computes a digest of the encoding of every certificate in a chain.
+	 */
+	private static byte[] fingerprint(Certificate[] certs) throws CertificateEncodingException {
+		MessageDigest digest = ContentDigest.newDigest();
+		for (Certificate cert: certs) {
+			byte[] encoded = cert.getEncoded();
+			digest.update(ByteBuffer.allocate(4).putInt(encoded.length).array());
+			digest.update(encoded);
+		}
+		return digest.digest();
 	}
 
 	@SuppressWarnings("unchecked")
@@ -147,10 +358,7 @@ public class CertificateVerifier {
 			while (zip.getNextEntry() != null) {
 				try {
 					for (X509Certificate cert : (Collection<X509Certificate>) cf.generateCertificates(zip)) {
-						try {
-							cert.checkValidity(date);
-							certificates.add(cert);
-						} catch (CertificateException e) {}
+						certificates.add(cert);
 					} 
 				} catch (ClassCastException e) {
 					System.err.println("Encountered a collection other than X509Certificates");
@@ -174,10 +382,7 @@ public class CertificateVerifier {
 	private void loadFile(File file) {
 		try {
 			for (X509Certificate cert : (Collection<X509Certificate>) cf.generateCertificates(new FileInputStream(file))) {
-				try {
-					cert.checkValidity(date);
-					certificates.add(cert);
-				} catch (CertificateException e) {}
+				certificates.add(cert);
 			}
 		} catch (ClassCastException e) {
 			System.err.println("Encountered a collection other than X509Certificates");
@@ -194,14 +399,30 @@ public class CertificateVerifier {
 			for (TrustManager tm: tmf.getTrustManagers()) {
 				if (tm instanceof X509TrustManager) {
 					for (X509Certificate cert: ((X509TrustManager)tm).getAcceptedIssuers()) {
-						try {
-							cert.checkValidity(date);
-							certificates.add(cert);
-						} catch (CertificateException e) {}
+						certificates.add(cert);
 					}
 				} else
 					System.err.println("Encountered a TrustManager which was not a decendant of X509TrustManager");
 			}
 		} catch (GeneralSecurityException e) {}
 	}
+
+	/**
+	 * A trusted certificate, as stored in the index.
+	 */
+	private static class Anchor {
+		final byte[] fingerprint, encoded;
+		final long notBefore, notAfter;
+
+		Anchor(byte[] fingerprint, long notBefore, long notAfter, byte[] encoded) {
+			this.fingerprint = fingerprint;
+			this.notBefore = notBefore;
+			this.notAfter = notAfter;
+			this.encoded = encoded;
+		}
+
+		Anchor(X509Certificate cert) throws CertificateEncodingException {
+			this(fingerprint(cert.getEncoded()), cert.getNotBefore().getTime(), cert.getNotAfter().getTime(), cert.getEncoded());
+		}
+	}
 }
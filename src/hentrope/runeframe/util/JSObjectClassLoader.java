@@ -5,6 +5,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 
+import hentrope.runeframe.io.Network;
+
 /**
  * Loads in a class to replace Java's default implementation of JSObject,
  * which allows the client to intercept the game's JavaScript calls.
@@ -12,11 +14,15 @@ import java.net.URL;
  * @author hentrope
  */
 public class JSObjectClassLoader extends ClassLoader {
+	static {
+		registerAsParallelCapable();
+	}
+
 	private final static String CLASS_NAME = "netscape.javascript.JSObject";
 
 	public static ClassLoader fromURL(URL url) throws IOException {
 		final byte[] buff = new byte[4096];
-		final InputStream in = url.openStream();
+		final InputStream in = Network.open(url).getInputStream();
 		final ByteArrayOutputStream out = new ByteArrayOutputStream();
 
 		try {
@@ -40,16 +46,18 @@ public class JSObjectClassLoader extends ClassLoader {
 	}
 	
 	@Override
-	protected synchronized Class<?> loadClass(String name, boolean resolve)
+	protected Class<?> loadClass(String name, boolean resolve)
 			throws ClassNotFoundException {
 
 		if (CLASS_NAME.equals(name)) {
-			Class<?> c = findLoadedClass(name);
-			if (c == null)
-				c = findClass(name);
-			if (resolve)
-				resolveClass(c);
-			return c;
+			synchronized (getClassLoadingLock(name)) {
+				Class<?> c = findLoadedClass(name);
+				if (c == null)
+					c = findClass(name);
+				if (resolve)
+					resolveClass(c);
+				return c;
+			}
 		} else
 			return super.loadClass(name, resolve);
 	}
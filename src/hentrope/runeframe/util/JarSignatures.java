@@ -0,0 +1,298 @@
+package hentrope.runeframe.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Verifies the signatures of a JAR's entries in parallel, rather than one at
+ * a time as they are read by a JarInputStream.
+ * <p>
+ * The manifest of a signed JAR lists the digest of each entry. Each signature
+ * file (.SF) lists the digest of the manifest, and is signed by a signature
+ * block (.RSA or .DSA) containing the signer's certificate chain. Checking
+ * a signature block is expensive, so it is only done once, along with the
+ * first entry it signs. Every other entry only needs its digest to be
+ * compared with the manifest, which is done on a {@link ForkJoinPool} so
+ * that verification scales with the number of cores.
+ * <p>
+ * If a signature file does not match the whole manifest, which happens when
+ * the manifest was modified after signing, each entry it signs is checked
+ * individually by a JarInputStream instead.
+ * <p>
+ * The signers are frozen when the first entry is submitted, so that the
+ * tasks verifying entries never see them change. A signature file that
+ * arrives afterwards is rejected, since the entries before it could not
+ * have been checked against it.
+ *
+ * @author hentrope
+ * @see JarSignatures#submit(String, byte[], CertificateVerifier)
+ */
+public class JarSignatures {
+	private static final String DIGEST_SUFFIX = "-DIGEST", MANIFEST_DIGEST_SUFFIX = "-DIGEST-MANIFEST";
+
+	private final byte[] manifestData;
+	private final Manifest manifest;
+	private final ForkJoinPool pool;
+	private final Map<String, Signer> pending = new LinkedHashMap<String, Signer>();
+	private volatile Map<String, Signer> signers = null;
+
+	/**
+	 * @param manifestData the exact contents of the JAR's manifest, or null if it has none
+	 * @param pool the pool on which entries are verified
+	 * @throws IOException if the manifest is malformed
+	 */
+	public JarSignatures(byte[] manifestData, ForkJoinPool pool) throws IOException {
+		this.manifestData = manifestData != null ? manifestData : new byte[0];
+		this.manifest = new Manifest(new ByteArrayInputStream(this.manifestData));
+		this.pool = pool;
+	}
+
+	public JarSignatures(byte[] manifestData) throws IOException {
+		this(manifestData, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Adds a signature file or signature block read from the JAR. All of them
+	 * must be added before the first entry is submitted, which is the case
+	 * for any JAR produced by jarsigner.
+	 *
+	 * @param name name of the file, for which {@link hentrope.runeframe.client.ClientGamepack#isUnverifiable(String)} is true
+	 * @param data contents of the file
+	 * @throws IOException if a signature file is malformed
+	 * @throws SecurityException if an entry has already been submitted
+	 */
+	public synchronized void addSignatureFile(String name, byte[] data) throws IOException, SecurityException {
+		if (signers != null)
+			throw new SecurityException("Signature file " + name + " follows the entries it signs.");
+
+		int dot = name.lastIndexOf('.');
+		if (dot < 0)
+			return;
+
+		String base = name.substring(0, dot).toUpperCase(Locale.ENGLISH);
+		String extension = name.substring(dot + 1).toUpperCase(Locale.ENGLISH);
+
+		Signer signer = pending.get(base);
+		if (signer == null)
+			pending.put(base, signer = new Signer());
+
+		if (extension.equals("SF"))
+			signer.setFile(name, data);
+		else if (extension.equals("RSA") || extension.equals("DSA")) {
+			signer.blockName = name;
+			signer.block = data;
+		}
+	}
+
+	/**
+	 * Starts verifying an entry of the JAR on the pool.
+	 * <p>
+	 * The returned task finds the certificates of every signer of the entry,
+	 * and then checks them using the given verifier. If the entry does not
+	 * match its digest, the task fails with a SecurityException.
+	 *
+	 * @param name name of the entry
+	 * @param data contents of the entry
+	 * @param verifier CertificateVerifier instance used to verify the certificates, or null if they should not be verified
+	 * @return a task that returns the certificates of the entry, or null if the entry is not signed
+	 */
+	public ForkJoinTask<Certificate[]> submit(final String name, final byte[] data, final CertificateVerifier verifier) {
+		getSigners();
+		return pool.submit(new Callable<Certificate[]>() {
+			@Override
+			public Certificate[] call() throws GeneralSecurityException, IOException {
+				Certificate[] certificates = getCertificates(name, data);
+				if (verifier != null)
+					verifier.verify(certificates);
+				return certificates;
+			}
+		});
+	}
+
+	/**
+	 * Checks the digest of an entry against the manifest, and returns the
+	 * certificates of every signer that signs it.
+	 *
+	 * @param name name of the entry
+	 * @param data contents of the entry
+	 * @return the certificates of the entry, or null if the entry is not signed
+	 * @throws IOException if a signature file cannot be checked
+	 * @throws SecurityException if the entry or a signature is invalid
+	 */
+	public Certificate[] getCertificates(String name, byte[] data) throws IOException, SecurityException {
+		Attributes attributes = manifest.getAttributes(name);
+		if (attributes == null || !checkDigests(attributes, data, DIGEST_SUFFIX, name))
+			return null;
+
+		Certificate[] only = null;
+		List<Certificate> all = null;
+		for (Signer signer: getSigners().values()) {
+			Certificate[] chain = signer.getCertificates(name, data);
+			if (chain == null)
+				continue;
+
+			// Most JARs have a single signer, whose chain is shared by every entry.
+			if (only == null && all == null)
+				only = chain;
+			else {
+				if (all == null)
+					all = new ArrayList<Certificate>(Arrays.asList(only));
+				all.addAll(Arrays.asList(chain));
+			}
+		}
+		return all != null ? all.toArray(new Certificate[all.size()]) : only;
+	}
+
+	/**
+	 * Returns the signers, freezing them the first time this is called.
+	 */
+	private Map<String, Signer> getSigners() {
+		Map<String, Signer> signers = this.signers;
+		if (signers == null) {
+			synchronized (this) {
+				if (this.signers == null)
+					this.signers = Collections.unmodifiableMap(new LinkedHashMap<String, Signer>(pending));
+				signers = this.signers;
+			}
+		}
+		return signers;
+	}
+
+	/**
+	 * Compares the given data with every digest in the given attributes that
+	 * uses a supported algorithm.
+	 *
+	 * @return true if at least one digest was compared
+	 * @throws SecurityException if the data does not match a digest
+	 */
+	private static boolean checkDigests(Attributes attributes, byte[] data, String suffix, String name) {
+		boolean checked = false;
+		for (Map.Entry<Object, Object> attribute: attributes.entrySet()) {
+			String key = attribute.getKey().toString().toUpperCase(Locale.ENGLISH);
+			if (!key.endsWith(suffix))
+				continue;
+
+			String algorithm = key.substring(0, key.length() - suffix.length());
+			MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				continue;
+			}
+
+			byte[] expected;
+			try {
+				expected = Base64.getMimeDecoder().decode(attribute.getValue().toString());
+			} catch (IllegalArgumentException e) {
+				throw new SecurityException("Malformed " + algorithm + " digest for " + name);
+			}
+
+			if (!MessageDigest.isEqual(expected, digest.digest(data)))
+				throw new SecurityException(algorithm + " digest error for " + name);
+			checked = true;
+		}
+		return checked;
+	}
+
+	private static void write(ZipOutputStream zip, String name, byte[] data) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		ZipEntry entry = new ZipEntry(name);
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(data.length);
+		entry.setCompressedSize(data.length);
+		entry.setCrc(crc.getValue());
+
+		zip.putNextEntry(entry);
+		zip.write(data);
+		zip.closeEntry();
+	}
+
+	/**
+	 * A signature file and the signature block that signs it.
+	 */
+	private class Signer {
+		String fileName, blockName;
+		byte[] file, block;
+		Manifest sections;
+		boolean signsManifest;
+		volatile Certificate[] chain;
+
+		void setFile(String name, byte[] data) throws IOException {
+			fileName = name;
+			file = data;
+			sections = new Manifest(new ByteArrayInputStream(data));
+
+			try {
+				signsManifest = checkDigests(sections.getMainAttributes(), manifestData, MANIFEST_DIGEST_SUFFIX, JarFile.MANIFEST_NAME);
+			} catch (SecurityException e) {
+				signsManifest = false;
+			}
+		}
+
+		/**
+		 * @return the certificate chain of this signer if it signs the given entry, otherwise null
+		 */
+		Certificate[] getCertificates(String name, byte[] data) throws IOException {
+			if (file == null || block == null || sections.getAttributes(name) == null)
+				return null;
+
+			synchronized (this) {
+				if (chain == null)
+					return chain = check(name, data);
+			}
+			return signsManifest ? chain : check(name, data);
+		}
+
+		/**
+		 * Verifies a single entry using a JarInputStream, by writing it to a
+		 * JAR in memory along with the manifest and this signer's files.
+		 */
+		private Certificate[] check(String name, byte[] data) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					manifestData.length + file.length + block.length + data.length + 1024);
+			try ( ZipOutputStream zip = new ZipOutputStream(bytes) ) {
+				write(zip, JarFile.MANIFEST_NAME, manifestData);
+				write(zip, fileName, file);
+				write(zip, blockName, block);
+				write(zip, name, data);
+			}
+
+			try ( JarInputStream jar = new JarInputStream(new ByteArrayInputStream(bytes.toByteArray()), true) ) {
+				byte[] buff = new byte[4096];
+				JarEntry entry;
+				while ((entry = jar.getNextJarEntry()) != null) {
+					while (jar.read(buff, 0, buff.length) > 0);
+					if (entry.getName().equals(name))
+						return entry.getCertificates();
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package hentrope.runeframe;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A minimal harness for the tests of the client's self-contained logic,
+ * which needs nothing beyond the JDK. Every public static method of a test
+ * class whose name begins with "test" is run in turn, and a test fails if
+ * it throws anything.
+ * <p>
+ * The tests are compiled against the client, and run by passing the names
+ * of the test classes to {@link #main(String[])}, or with no arguments to
+ * run all of them:
+ * <pre>
+ * javac -d bin $(find src -name '*.java')
+ * javac -cp bin -d bin-test $(find test -name '*.java')
+ * java -cp bin:bin-test hentrope.runeframe.TestHarness
+ * </pre>
+ *
+ * @author hentrope
+ */
+public class TestHarness {
+	private static final String[] TESTS = {
+			"hentrope.runeframe.client.ArenaGamepackTest",
+			"hentrope.runeframe.client.ClientClassLoaderTest",
+			"hentrope.runeframe.client.WorldProbeTest",
+			"hentrope.runeframe.io.HttpValidatorTest",
+			"hentrope.runeframe.io.ResumableDownloadTest",
+			"hentrope.runeframe.io.SegmentedInputStreamTest",
+			"hentrope.runeframe.io.StallDetectingInputStreamTest" };
+
+	public static void main(String[] args) throws ClassNotFoundException {
+		int failures = 0;
+		for (String name: args.length > 0 ? args : TESTS)
+			failures += run(Class.forName(name));
+
+		System.out.println(failures == 0 ? "All tests passed." : failures + " test(s) failed.");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Runs each test of the given class in order of name, printing whether
+	 * it passed.
+	 *
+	 * @param tests a class containing public static test methods
+	 * @return the number of tests that failed
+	 */
+	public static int run(Class<?> tests) {
+		Method[] methods = tests.getMethods();
+		Arrays.sort(methods, new Comparator<Method>() {
+			@Override
+			public int compare(Method a, Method b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+
+		int failures = 0;
+		for (Method method: methods) {
+			if (!method.getName().startsWith("test") || !Modifier.isStatic(method.getModifiers()))
+				continue;
+
+			String name = tests.getSimpleName() + "." + method.getName();
+			try {
+				method.invoke(null);
+				System.out.println("PASS " + name);
+			} catch (InvocationTargetException | IllegalAccessException e) {
+				failures++;
+				System.out.println("FAIL " + name);
+				(e instanceof InvocationTargetException ? e.getCause() : e).printStackTrace(System.out);
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * @param condition the condition that must hold
+	 * @param message description of the failure
+	 * @throws AssertionError if the condition is false
+	 */
+	public static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+
+	/**
+	 * @param expected the expected value, which may be null
+	 * @param actual the actual value, which may be null
+	 * @param message description of the value being checked
+	 * @throws AssertionError if the values are not equal
+	 */
+	public static void checkEquals(Object expected, Object actual, String message) {
+		if (expected == null ? actual != null : !expected.equals(actual))
+			throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+	}
+}
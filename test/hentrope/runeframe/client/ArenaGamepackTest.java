@@ -0,0 +1,132 @@
+package hentrope.runeframe.client;
+
+import static hentrope.runeframe.TestHarness.check;
+import static hentrope.runeframe.TestHarness.checkEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Tests reading a JAR through its central directory, with both stored and
+ * deflated entries, into heap and direct buffers.
+ *
+ * @author hentrope
+ */
+public class ArenaGamepackTest {
+	public static void testHeapBuffer() throws IOException {
+		checkRead(false);
+	}
+
+	public static void testDirectBuffer() throws IOException {
+		checkRead(true);
+	}
+
+	public static void testTruncated() throws IOException {
+		File jar = File.createTempFile("runeframe", ".jar");
+		try {
+			writeJar(jar, files());
+			try ( RandomAccessFile raf = new RandomAccessFile(jar, "rw") ) {
+				raf.setLength(raf.length() - 10);
+			}
+
+			try {
+				ArenaGamepack.read(jar, false);
+				throw new AssertionError("a truncated JAR was read");
+			} catch (ZipException e) {}
+		} finally {
+			jar.delete();
+		}
+	}
+
+	private static void checkRead(boolean direct) throws IOException {
+		Map<String, byte[]> files = files();
+		File jar = File.createTempFile("runeframe", ".jar");
+		try {
+			writeJar(jar, files);
+			ClientGamepack gamepack = ArenaGamepack.read(jar, direct);
+
+			// Directories and signature files are skipped, and the manifest comes first.
+			List<String> names = new ArrayList<String>();
+			for (ClientGamepack.Entry entry: gamepack) {
+				names.add(entry.entry.getName());
+				if (files.containsKey(entry.entry.getName()))
+					check(Arrays.equals(files.get(entry.entry.getName()), entry.data), "data of " + entry.entry.getName());
+			}
+			List<String> expected = new ArrayList<String>();
+			expected.add("META-INF/MANIFEST.MF");
+			expected.addAll(files.keySet());
+			checkEquals(expected, names, "file names");
+			checkEquals("test", gamepack.getManifest().getMainAttributes().getValue("Test-Attribute"), "manifest attribute");
+
+			checkEquals(Arrays.asList("a.Deflated", "a.Stored", "a.b.Nested"), new ArrayList<String>(gamepack.getClassNames()),
+					"class names");
+			check(gamepack.contains("a.b.Nested"), "class is not contained");
+			check(!gamepack.contains("a.Missing"), "missing class is contained");
+
+			ClassSource.Data data = gamepack.remove("a.Deflated");
+			byte[] removed = new byte[data.buffer.remaining()];
+			data.buffer.get(removed);
+			check(Arrays.equals(files.get("a/Deflated.class"), removed), "data of the removed class");
+			check(gamepack.remove("a.Deflated") == null, "class was removed twice");
+			checkEquals(Arrays.asList("a.Stored", "a.b.Nested"), new ArrayList<String>(gamepack.getClassNames()),
+					"class names after removal");
+		} finally {
+			jar.delete();
+		}
+	}
+
+	/**
+	 * Files of the test JAR, in the order they are written after the manifest.
+	 */
+	private static Map<String, byte[]> files() {
+		Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+		byte[] random = new byte[5000];
+		new Random(1).nextBytes(random);
+		files.put("a/Stored.class", random);
+		files.put("a/Deflated.class", new byte[20000]);
+		files.put("a/b/Nested.class", "nested".getBytes());
+		files.put("resource.txt", new byte[0]);
+		return files;
+	}
+
+	private static void writeJar(File file, Map<String, byte[]> files) throws IOException {
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(new Attributes.Name("Test-Attribute"), "test");
+
+		try ( JarOutputStream out = new JarOutputStream(new FileOutputStream(file), manifest) ) {
+			out.putNextEntry(new JarEntry("a/"));
+			for (Map.Entry<String, byte[]> content: files.entrySet()) {
+				byte[] data = content.getValue();
+				JarEntry entry = new JarEntry(content.getKey());
+				if (content.getKey().startsWith("a/Stored")) {
+					CRC32 crc = new CRC32();
+					crc.update(data);
+					entry.setMethod(ZipEntry.STORED);
+					entry.setSize(data.length);
+					entry.setCompressedSize(data.length);
+					entry.setCrc(crc.getValue());
+				}
+				out.putNextEntry(entry);
+				out.write(data);
+			}
+			out.putNextEntry(new JarEntry("META-INF/TEST.SF"));
+			out.write(new byte[10]);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package hentrope.runeframe.client;
+
+import static hentrope.runeframe.TestHarness.check;
+import static hentrope.runeframe.TestHarness.checkEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tests which classes a ClientClassLoader defines itself rather than
+ * delegating to its parent, and that missing classes are remembered.
+ *
+ * @author hentrope
+ */
+public class ClientClassLoaderTest {
+	/**
+	 * A class defined a second time by the ClientClassLoader under test.
+	 */
+	public static class Sample {}
+
+	public static void testChildFirst() throws IOException, ClassNotFoundException {
+		RecordingLoader parent = new RecordingLoader();
+		MapSource source = new MapSource();
+		source.put(Sample.class.getName(), readClass(Sample.class));
+		ClientClassLoader loader = ClientClassLoader.fromSource(source, parent);
+
+		Class<?> c = loader.loadClass(Sample.class.getName());
+		check(c.getClassLoader() == loader, "class in the source was not defined by the loader");
+		check(c != Sample.class, "class in the source was loaded by the parent");
+		check(!parent.requested.contains(Sample.class.getName()), "parent was asked for a class in the source");
+		check(loader.loadClass(Sample.class.getName()) == c, "class was defined twice");
+	}
+
+	public static void testParentPackages() throws ClassNotFoundException {
+		RecordingLoader parent = new RecordingLoader();
+		MapSource source = new MapSource();
+		source.put("java.lang.Object", new byte[0]);
+		ClientClassLoader loader = ClientClassLoader.fromSource(source, parent);
+
+		check(loader.loadClass("java.lang.Object") == Object.class, "a java class was not loaded by the parent");
+		check(parent.requested.contains("java.lang.Object"), "parent was not asked for a java class");
+		check(source.classes.containsKey("java.lang.Object"), "a java class was removed from the source");
+	}
+
+	public static void testMissingRemembered() {
+		RecordingLoader parent = new RecordingLoader();
+		ClientClassLoader loader = ClientClassLoader.fromSource(new MapSource(), parent);
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				loader.loadClass("missing.Missing");
+				throw new AssertionError("missing class was found");
+			} catch (ClassNotFoundException e) {}
+		}
+		checkEquals(1, Collections.frequency(parent.requested, "missing.Missing"), "requests to the parent");
+	}
+
+	private static byte[] readClass(Class<?> c) throws IOException {
+		String name = c.getName();
+		try ( InputStream in = c.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class") ) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buff = new byte[4096];
+			int bytesRead;
+			while ((bytesRead = in.read(buff, 0, buff.length)) > 0)
+				out.write(buff, 0, bytesRead);
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * A ClassLoader that records the name of every class it is asked for.
+	 */
+	private static class RecordingLoader extends ClassLoader {
+		final List<String> requested = Collections.synchronizedList(new ArrayList<String>());
+
+		RecordingLoader() {
+			super(ClientClassLoaderTest.class.getClassLoader());
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			requested.add(name);
+			return super.loadClass(name, resolve);
+		}
+	}
+
+	/**
+	 * A ClassSource backed by a map from class name to data.
+	 */
+	private static class MapSource implements ClassSource {
+		final Map<String, byte[]> classes = new ConcurrentHashMap<String, byte[]>();
+
+		void put(String name, byte[] data) {
+			classes.put(name, data);
+		}
+
+		@Override
+		public Collection<String> getClassNames() {
+			return new ArrayList<String>(classes.keySet());
+		}
+
+		@Override
+		public boolean contains(String name) {
+			return classes.containsKey(name);
+		}
+
+		@Override
+		public Data remove(String name) {
+			byte[] data = classes.remove(name);
+			return data != null ? new Data(ByteBuffer.wrap(data), null) : null;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package hentrope.runeframe.client;
+
+import static hentrope.runeframe.TestHarness.checkEquals;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tests probing local listener sockets, and the ordering and persistence
+ * of the recorded latencies.
+ *
+ * @author hentrope
+ */
+public class WorldProbeTest {
+	public static void testProbe() throws IOException {
+		File history = File.createTempFile("runeframe", ".probe");
+		try (	ServerSocket one = listen();
+				ServerSocket two = listen() ) {
+			// World 1 was slow on its previous probe, which is averaged with the new result.
+			writeHistory(history, 1, 1000, 3, 5);
+			WorldProbe probe = WorldProbe.read(history);
+
+			Map<Integer, InetSocketAddress> targets = new LinkedHashMap<Integer, InetSocketAddress>();
+			targets.put(1, address(one));
+			targets.put(2, address(two));
+			targets.put(3, closedAddress());
+			probe.probe(targets, 1000);
+
+			checkEquals("[2, 1]", Arrays.toString(probe.getFastestWorlds(5)), "fastest worlds");
+			checkEquals("[2]", Arrays.toString(probe.getFastestWorlds(1)), "fastest world");
+
+			probe.write(history);
+			checkEquals("[2, 1]", Arrays.toString(WorldProbe.read(history).getFastestWorlds(5)),
+					"fastest worlds read back");
+		} finally {
+			history.delete();
+		}
+	}
+
+	public static void testMalformedHistory() throws IOException {
+		File history = File.createTempFile("runeframe", ".probe");
+		try {
+			try ( FileOutputStream out = new FileOutputStream(history) ) {
+				out.write(new byte[] { 1, 2, 3 });
+			}
+			checkEquals(0, WorldProbe.read(history).getFastestWorlds(5).length, "worlds read from a malformed file");
+
+			history.delete();
+			checkEquals(0, WorldProbe.read(history).getFastestWorlds(5).length, "worlds read from a missing file");
+		} finally {
+			history.delete();
+		}
+	}
+
+	private static ServerSocket listen() throws IOException {
+		return new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+	}
+
+	private static InetSocketAddress address(ServerSocket socket) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+	}
+
+	/**
+	 * Returns the address of a port that was listening, but no longer is.
+	 */
+	private static InetSocketAddress closedAddress() throws IOException {
+		try ( ServerSocket socket = listen() ) {
+			return address(socket);
+		}
+	}
+
+	/**
+	 * Writes a history in the format used by {@link WorldProbe#write(File)},
+	 * from pairs of world numbers and latencies.
+	 */
+	private static void writeHistory(File file, int... entries) throws IOException {
+		try ( DataOutputStream out = new DataOutputStream(new FileOutputStream(file)) ) {
+			out.writeInt(0x52465750); // "RFWP"
+			out.writeInt(entries.length / 2);
+			for (int entry: entries)
+				out.writeInt(entry);
+		}
+	}
+}
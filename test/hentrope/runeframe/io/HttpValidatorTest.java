@@ -0,0 +1,89 @@
+package hentrope.runeframe.io;
+
+import static hentrope.runeframe.TestHarness.check;
+import static hentrope.runeframe.TestHarness.checkEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Tests that validators survive being written and read back, and are only
+ * sent with requests for the URL they were returned for.
+ *
+ * @author hentrope
+ */
+public class HttpValidatorTest {
+	private static final String ETAG = "\"abc\"", LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+	public static void testStreamRoundTrip() throws IOException {
+		URL url = new URL("http://host/config");
+		checkHeaders(roundTrip(validator(url, ETAG, LAST_MODIFIED)), url, ETAG, LAST_MODIFIED);
+		checkHeaders(roundTrip(validator(url, ETAG, null)), url, ETAG, null);
+		checkHeaders(roundTrip(validator(url, null, LAST_MODIFIED)), url, null, LAST_MODIFIED);
+	}
+
+	public static void testFileRoundTrip() throws IOException {
+		URL url = new URL("http://host/gamepack.jar");
+		File file = File.createTempFile("runeframe", ".validator");
+		try {
+			validator(url, ETAG, LAST_MODIFIED).write(file);
+			checkHeaders(HttpValidator.read(file), url, ETAG, LAST_MODIFIED);
+
+			file.delete();
+			check(HttpValidator.read(file) == null, "a missing file was read");
+		} finally {
+			file.delete();
+		}
+	}
+
+	public static void testOtherURL() throws IOException {
+		HttpValidator validator = validator(new URL("http://host/config"), ETAG, LAST_MODIFIED);
+		URL other = new URL("http://host/other");
+		check(!validator.appliesTo(other), "validator applies to a different URL");
+
+		URLConnection connection = other.openConnection();
+		validator.addTo(connection);
+		checkEquals(null, connection.getRequestProperty("if-none-match"), "if-none-match");
+		checkEquals(null, connection.getRequestProperty("if-modified-since"), "if-modified-since");
+	}
+
+	/**
+	 * Creates a validator in the same way that it would be read from disk.
+	 */
+	private static HttpValidator validator(URL url, String etag, String lastModified) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try ( DataOutputStream out = new DataOutputStream(bytes) ) {
+			out.writeUTF(url.toString());
+			out.writeUTF(etag != null ? etag : "");
+			out.writeUTF(lastModified != null ? lastModified : "");
+		}
+		return HttpValidator.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+	}
+
+	private static HttpValidator roundTrip(HttpValidator validator) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try ( DataOutputStream out = new DataOutputStream(bytes) ) {
+			validator.write(out);
+		}
+		return HttpValidator.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+	}
+
+	/**
+	 * Checks the headers that the validator adds to a request for the given URL.
+	 */
+	private static void checkHeaders(HttpValidator validator, URL url, String etag, String lastModified)
+			throws IOException {
+		check(validator.appliesTo(url), "validator does not apply to its own URL");
+
+		URLConnection connection = url.openConnection();
+		validator.addTo(connection);
+		checkEquals(etag, connection.getRequestProperty("if-none-match"), "if-none-match");
+		checkEquals(lastModified, connection.getRequestProperty("if-modified-since"), "if-modified-since");
+	}
+}
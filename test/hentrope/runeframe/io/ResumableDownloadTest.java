@@ -0,0 +1,221 @@
+package hentrope.runeframe.io;
+
+import static hentrope.runeframe.TestHarness.check;
+import static hentrope.runeframe.TestHarness.checkEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests the header of the partial file, and resuming downloads from a
+ * server that drops connections partway or stops sending data.
+ *
+ * @author hentrope
+ */
+public class ResumableDownloadTest {
+	public static void testHeaderRoundTrip() throws IOException {
+		File file = File.createTempFile("runeframe", ".part");
+		try {
+			ResumableDownload.State state = new ResumableDownload.State("http://host/file", "gzip", "gzip", "\"v1\"", 1000);
+			state.write(file);
+			try ( FileOutputStream out = new FileOutputStream(file, true) ) {
+				out.write(new byte[300]);
+			}
+			try ( FileChannel channel = new RandomAccessFile(file, "rw").getChannel() ) {
+				state.writeReceived(channel, 200);
+			}
+
+			ResumableDownload.State read = ResumableDownload.State.read(file);
+			check(read != null, "header could not be read");
+			checkEquals(state.url, read.url, "url");
+			checkEquals(state.acceptEncoding, read.acceptEncoding, "accept-encoding");
+			checkEquals(state.encoding, read.encoding, "encoding");
+			checkEquals(state.validator, read.validator, "validator");
+			checkEquals(state.length, read.length, "length");
+			checkEquals(state.dataOffset, read.dataOffset, "data offset");
+			checkEquals(200L, read.received, "received length");
+		} finally {
+			file.delete();
+		}
+	}
+
+	public static void testHeaderLimitedByData() throws IOException {
+		File file = File.createTempFile("runeframe", ".part");
+		try {
+			ResumableDownload.State state = new ResumableDownload.State("http://host/file", "", "", "\"v1\"", 1000);
+			state.write(file);
+			try ( FileOutputStream out = new FileOutputStream(file, true) ) {
+				out.write(new byte[100]);
+			}
+			try ( FileChannel channel = new RandomAccessFile(file, "rw").getChannel() ) {
+				state.writeReceived(channel, 500);
+			}
+
+			checkEquals(100L, ResumableDownload.State.read(file).received, "received length");
+		} finally {
+			file.delete();
+		}
+	}
+
+	public static void testHeaderRejected() throws IOException {
+		File file = File.createTempFile("runeframe", ".part");
+		try {
+			ResumableDownload.State state = new ResumableDownload.State("http://host/file", "", "", "\"v1\"", 100);
+			state.write(file);
+			check(ResumableDownload.State.read(file) == null, "a header with no data was accepted");
+
+			try ( FileOutputStream out = new FileOutputStream(file, true) ) {
+				out.write(new byte[100]);
+			}
+			try ( FileChannel channel = new RandomAccessFile(file, "rw").getChannel() ) {
+				state.writeReceived(channel, 100);
+			}
+			check(ResumableDownload.State.read(file) == null, "a complete download was accepted");
+
+			try ( FileOutputStream out = new FileOutputStream(file) ) {
+				out.write(new byte[64]);
+			}
+			check(ResumableDownload.State.read(file) == null, "a header without the magic number was accepted");
+		} finally {
+			file.delete();
+		}
+	}
+
+	public static void testReconnectAfterDrop() throws IOException {
+		final byte[] body = randomBytes(100000);
+		File partial = File.createTempFile("runeframe", ".part");
+		try ( TestServer server = new TestServer(body) {
+			@Override
+			protected void send(int request, OutputStream out, int start, int end) throws Exception {
+				if (request == 1) {
+					out.write(body, start, 30000);
+					out.flush();
+					throw new IOException("dropped");
+				}
+				super.send(request, out, start, end);
+			}
+		} ) {
+			byte[] read;
+			try ( ResumableDownload download = ResumableDownload.open(server.getURL(), "identity", partial, 1, null) ) {
+				read = readAll(download.getInputStream());
+			}
+
+			check(Arrays.equals(body, read), "downloaded data does not match");
+			List<TestServer.Request> requests = server.getRequests();
+			checkEquals(2, requests.size(), "requests");
+			checkEquals("bytes=30000-", requests.get(1).range, "range of the reconnection");
+			checkEquals(TestServer.ETAG, requests.get(1).ifRange, "if-range of the reconnection");
+			check(!partial.exists(), "partial file was not deleted");
+		} finally {
+			partial.delete();
+		}
+	}
+
+	public static void testResumeAfterFailure() throws IOException {
+		final byte[] body = randomBytes(100000);
+		File partial = File.createTempFile("runeframe", ".part");
+		try ( TestServer server = new TestServer(body) {
+			@Override
+			protected void send(int request, OutputStream out, int start, int end) throws Exception {
+				// The first download is dropped, and none of its reconnections receive any data.
+				if (request == 1) {
+					out.write(body, start, 10000);
+					out.flush();
+				}
+				if (request <= Network.RECONNECTS + 1)
+					throw new IOException("dropped");
+				super.send(request, out, start, end);
+			}
+		} ) {
+			int expected = 10000;
+			try ( ResumableDownload download = ResumableDownload.open(server.getURL(), "identity", partial, 1, null) ) {
+				readAll(download.getInputStream());
+				throw new AssertionError("download did not fail");
+			} catch (IOException e) {}
+			check(partial.exists(), "partial file was not kept");
+
+			byte[] read;
+			try ( ResumableDownload download = ResumableDownload.open(server.getURL(), "identity", partial, 1, null) ) {
+				checkEquals((long) expected, download.getResumedLength(), "resumed length");
+				read = readAll(download.getInputStream());
+			}
+
+			check(Arrays.equals(body, read), "resumed data does not match");
+			checkEquals("bytes=" + expected + "-", server.getRequests().get(Network.RECONNECTS + 1).range, "range of the resumed request");
+		} finally {
+			partial.delete();
+		}
+	}
+
+	/**
+	 * The first connection trickles data well below the minimum throughput,
+	 * and the second stops sending data altogether. Both should be
+	 * abandoned, and the download resumed from where each left off.
+	 */
+	public static void testStalledConnectionsAbandoned() throws IOException {
+		final byte[] body = randomBytes(200000);
+		File partial = File.createTempFile("runeframe", ".part");
+		try ( TestServer server = new TestServer(body) {
+			@Override
+			protected void send(int request, OutputStream out, int start, int end) throws Exception {
+				if (request <= 2) {
+					out.write(body, start, 20000);
+					out.flush();
+					if (request == 1) {
+						for (int i = start + 20000; i <= end; i += 64) {
+							out.write(body, i, Math.min(64, end - i + 1));
+							out.flush();
+							Thread.sleep(100);
+						}
+					}
+					Thread.sleep(Long.MAX_VALUE);
+				}
+				super.send(request, out, start, end);
+			}
+		} ) {
+			long start = System.nanoTime();
+			byte[] read;
+			try ( ResumableDownload download = ResumableDownload.open(server.getURL(), "identity", partial, 1, null) ) {
+				read = readAll(download.getInputStream());
+			}
+			long elapsed = (System.nanoTime() - start) / 1000000;
+
+			check(Arrays.equals(body, read), "downloaded data does not match");
+			check(elapsed < StallDetectingInputStream.WINDOW + Network.MAX_READ_TIMEOUT + 5000,
+					"stalled connections were only abandoned after " + elapsed + "ms");
+
+			List<TestServer.Request> requests = server.getRequests();
+			checkEquals(3, requests.size(), "requests");
+			long first = Long.parseLong(requests.get(1).range.replaceAll("\\D", ""));
+			long second = Long.parseLong(requests.get(2).range.replaceAll("\\D", ""));
+			check(first >= 20000, "trickling connection was resumed from byte " + first);
+			checkEquals(first + 20000, second, "resumed position of the hung connection");
+		} finally {
+			partial.delete();
+		}
+	}
+
+	static byte[] randomBytes(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+	static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buff = new byte[8192];
+		int bytesRead;
+		while ((bytesRead = in.read(buff, 0, buff.length)) > 0)
+			out.write(buff, 0, bytesRead);
+		return out.toByteArray();
+	}
+}
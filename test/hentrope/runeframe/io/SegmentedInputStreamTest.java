@@ -0,0 +1,110 @@
+package hentrope.runeframe.io;
+
+import static hentrope.runeframe.TestHarness.check;
+import static hentrope.runeframe.TestHarness.checkEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests that segments arriving out of order are returned in order and
+ * written to their place in the partial file, and measures the speedup of
+ * several connections against a throttled server.
+ *
+ * @author hentrope
+ */
+public class SegmentedInputStreamTest {
+	private static final int SIZE = SegmentedInputStream.MIN_SEGMENT_SIZE;
+	private static final int HEADER = 16;
+
+	public static void testOrdering() throws IOException {
+		final byte[] body = ResumableDownloadTest.randomBytes(SIZE * 4);
+		File partial = File.createTempFile("runeframe", ".part");
+		try (	TestServer server = new TestServer(body) {
+					@Override
+					protected void send(int request, OutputStream out, int start, int end) throws Exception {
+						// The second segment arrives after the ones following it.
+						if (start == SIZE)
+							Thread.sleep(500);
+						super.send(request, out, start, end);
+					}
+				};
+				FileChannel channel = new RandomAccessFile(partial, "rw").getChannel() ) {
+			InputStream stream = SegmentedInputStream.split(new ByteArrayInputStream(body), server.getURL(),
+					"identity", TestServer.ETAG, 0, body.length, 4, channel, HEADER);
+			check(stream instanceof SegmentedInputStream, "file was not split");
+
+			byte[] read = ResumableDownloadTest.readAll(stream);
+			stream.close();
+			check(Arrays.equals(body, read), "segments were not returned in order");
+
+			Set<String> ranges = new HashSet<String>();
+			for (TestServer.Request request: server.getRequests()) {
+				ranges.add(request.range);
+				checkEquals(TestServer.ETAG, request.ifRange, "if-range of a segment");
+			}
+			checkEquals(new HashSet<String>(Arrays.asList("bytes=262144-524287", "bytes=524288-786431",
+					"bytes=786432-1048575")), ranges, "requested ranges");
+
+			byte[] saved = new byte[body.length];
+			ByteBuffer buffer = ByteBuffer.wrap(saved);
+			while (buffer.hasRemaining())
+				check(channel.read(buffer, HEADER + buffer.position()) > 0, "partial file is too short");
+			check(Arrays.equals(body, saved), "partial file does not match");
+		} finally {
+			partial.delete();
+		}
+	}
+
+	public static void testSmallFileNotSplit() throws IOException {
+		InputStream first = new ByteArrayInputStream(new byte[0]);
+		InputStream stream = SegmentedInputStream.split(first, null, "identity", TestServer.ETAG,
+				SIZE, SIZE * 3 - 1, 4, null, HEADER);
+		check(stream == first, "a file with less than two segments remaining was split");
+	}
+
+	/**
+	 * Downloads the same file from a server that limits each connection to
+	 * 256 KB/s, first over one connection, then over four.
+	 */
+	public static void testSpeedup() throws IOException {
+		final byte[] body = ResumableDownloadTest.randomBytes(SIZE * 4);
+		File partial = File.createTempFile("runeframe", ".part");
+		try ( TestServer server = new TestServer(body) {
+			@Override
+			protected void send(int request, OutputStream out, int start, int end) throws Exception {
+				for (int i = start; i <= end; i += 16384) {
+					out.write(body, i, Math.min(16384, end - i + 1));
+					out.flush();
+					Thread.sleep(62);
+				}
+			}
+		} ) {
+			long one = download(server, partial, 1, body);
+			long four = download(server, partial, 4, body);
+			System.out.println("1 connection: " + one + "ms, 4 connections: " + four + "ms");
+			check(four * 2 < one, "four connections were not faster than one");
+		} finally {
+			partial.delete();
+		}
+	}
+
+	private static long download(TestServer server, File partial, int connections, byte[] body) throws IOException {
+		long start = System.nanoTime();
+		byte[] read;
+		try ( ResumableDownload download = ResumableDownload.open(server.getURL(), "identity", partial, connections, null) ) {
+			read = ResumableDownloadTest.readAll(download.getInputStream());
+		}
+		check(Arrays.equals(body, read), "downloaded data does not match");
+		return (System.nanoTime() - start) / 1000000;
+	}
+}
@@ -0,0 +1,92 @@
+package hentrope.runeframe.io;
+
+import static hentrope.runeframe.TestHarness.check;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+/**
+ * Tests the throughput below which a stream is treated as stalled, using
+ * streams that deliver data at a fixed rate.
+ *
+ * @author hentrope
+ */
+public class StallDetectingInputStreamTest {
+	private static final int DURATION = StallDetectingInputStream.WINDOW + 500;
+
+	public static void testSlowStream() throws IOException {
+		// Well below the lowest minimum throughput, whatever has been measured.
+		InputStream in = Network.monitor(new RateInputStream(StallDetectingInputStream.MIN_THROUGHPUT / 4));
+		long start = System.nanoTime();
+		try {
+			read(in, 0);
+			throw new AssertionError("slow stream was not detected");
+		} catch (SocketTimeoutException e) {
+			long elapsed = (System.nanoTime() - start) / 1000000;
+			check(elapsed >= StallDetectingInputStream.WINDOW, "stall was reported after only " + elapsed + "ms");
+		}
+	}
+
+	public static void testFastStream() throws IOException {
+		long minimum = Math.max(StallDetectingInputStream.MIN_THROUGHPUT,
+				Network.getBandwidth() / StallDetectingInputStream.STALL_FRACTION);
+		read(Network.monitor(new RateInputStream(minimum * 8)), 0);
+	}
+
+	public static void testSlowConsumer() throws IOException {
+		// Time spent between reads should not count against the stream.
+		read(Network.monitor(new RateInputStream(Long.MAX_VALUE)), 100);
+	}
+
+	/**
+	 * Reads from the stream for longer than a single window, pausing
+	 * between reads for the given number of milliseconds.
+	 */
+	private static void read(InputStream in, long pause) throws IOException {
+		byte[] buff = new byte[1024];
+		long end = System.nanoTime() + DURATION * 1000000L;
+		try {
+			while (System.nanoTime() < end) {
+				in.read(buff, 0, buff.length);
+				if (pause > 0)
+					Thread.sleep(pause);
+			}
+		} catch (InterruptedException e) {
+			throw new AssertionError(e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * An endless stream that delivers data at a fixed number of bytes per
+	 * second, by sleeping in each read.
+	 */
+	private static class RateInputStream extends InputStream {
+		private final long rate;
+
+		RateInputStream(long rate) {
+			this.rate = rate;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) > 0 ? b[0] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] data, int offset, int length) throws IOException {
+			if (rate == Long.MAX_VALUE)
+				return length;
+
+			try {
+				Thread.sleep(length * 1000L / rate);
+			} catch (InterruptedException e) {
+				throw new AssertionError(e);
+			}
+			return length;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package hentrope.runeframe.io;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local HTTP server that serves a single file, with support for byte
+ * ranges and If-Range. The file is sent with a strong ETag, so that
+ * downloads of it can be resumed.
+ * <p>
+ * Each response body is written by {@link #send(int, OutputStream, int, int)},
+ * which tests can override to drop, delay or throttle particular requests.
+ * Every connection is closed after a single response, so that a dropped
+ * response is seen by the client as soon as it happens.
+ *
+ * @author hentrope
+ */
+class TestServer implements Closeable {
+	public static final String ETAG = "\"test\"";
+
+	/**
+	 * The Range and If-Range headers of a single request.
+	 */
+	static class Request {
+		final String range, ifRange;
+
+		Request(String range, String ifRange) {
+			this.range = range;
+			this.ifRange = ifRange;
+		}
+	}
+
+	protected final byte[] body;
+	private final ServerSocket server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+
+	TestServer(byte[] body) throws IOException {
+		this.body = body;
+		this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = server.accept();
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								respond(socket);
+							}
+						});
+					}
+				} catch (IOException e) {}
+			}
+		});
+	}
+
+	URL getURL() throws MalformedURLException {
+		return new URL("http://127.0.0.1:" + server.getLocalPort() + "/file");
+	}
+
+	/**
+	 * @return a snapshot of the requests received so far, in order
+	 */
+	List<Request> getRequests() {
+		synchronized (requests) {
+			return new ArrayList<Request>(requests);
+		}
+	}
+
+	/**
+	 * Writes the response body for the given range of the file. The
+	 * connection is dropped if this throws an exception.
+	 *
+	 * @param request number of the request, starting at 1
+	 * @param out stream to which the body is written
+	 * @param start offset of the first byte to be sent
+	 * @param end offset of the last byte to be sent
+	 */
+	protected void send(int request, OutputStream out, int start, int end) throws Exception {
+		out.write(body, start, end - start + 1);
+	}
+
+	@Override
+	public void close() {
+		try {
+			server.close();
+		} catch (IOException e) {}
+		executor.shutdownNow();
+	}
+
+	private void respond(Socket socket) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+			in.readLine();
+
+			String line, range = null, ifRange = null;
+			while ((line = in.readLine()) != null && !line.isEmpty()) {
+				int colon = line.indexOf(':');
+				String name = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+				if (name.equals("range"))
+					range = line.substring(colon + 1).trim();
+				else if (name.equals("if-range"))
+					ifRange = line.substring(colon + 1).trim();
+			}
+
+			int request;
+			synchronized (requests) {
+				requests.add(new Request(range, ifRange));
+				request = requests.size();
+			}
+
+			StringBuilder headers = new StringBuilder();
+			int start = 0, end = body.length - 1;
+			if (range != null && (ifRange == null || ifRange.equals(ETAG))) {
+				String[] bounds = range.substring("bytes=".length()).split("-");
+				start = Integer.parseInt(bounds[0]);
+				if (bounds.length > 1)
+					end = Integer.parseInt(bounds[1]);
+				headers.append("HTTP/1.1 206 Partial Content\r\n");
+				headers.append("Content-Range: bytes " + start + "-" + end + "/" + body.length + "\r\n");
+			} else
+				headers.append("HTTP/1.1 200 OK\r\n");
+			headers.append("Accept-Ranges: bytes\r\n");
+			headers.append("ETag: " + ETAG + "\r\n");
+			headers.append("Content-Length: " + (end - start + 1) + "\r\n");
+			headers.append("Connection: close\r\n\r\n");
+
+			OutputStream out = socket.getOutputStream();
+			out.write(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+			send(request, out, start, end);
+			out.flush();
+		} catch (Exception e) {
+			// Closing the socket drops the connection.
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+}